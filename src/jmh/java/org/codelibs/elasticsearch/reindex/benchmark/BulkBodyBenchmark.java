@@ -0,0 +1,170 @@
+package org.codelibs.elasticsearch.reindex.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.codelibs.elasticsearch.reindex.service.BulkBody;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.text.Text;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.search.internal.InternalSearchHit;
+import org.elasticsearch.search.internal.InternalSearchHitField;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-hit work of a reindexing job: building index requests for the local cluster
+ * and building the NDJSON bulk body for a remote cluster.
+ *
+ * <pre>
+ * mvn -Pjmh clean test-compile exec:exec
+ * mvn -Pjmh clean test-compile exec:exec -Djmh.args="BulkBodyBenchmark.remote -p docSize=4096 -prof gc"
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BulkBodyBenchmark {
+
+    private static final int PAGE_SIZE = 100;
+
+    private static final String INDEX = "dataset2";
+
+    private static final String TYPE = "item";
+
+    /** approximate bytes of _source */
+    @Param({ "256", "4096", "65536" })
+    public int docSize;
+
+    @Param({ "false", "true" })
+    public boolean parent;
+
+    private SearchHit[] hits;
+
+    private final StringBuilder buf = new StringBuilder(1000);
+
+    @Setup
+    public void setup() throws IOException {
+        hits = new SearchHit[PAGE_SIZE];
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            final Map<String, SearchHitField> fields = new HashMap<>();
+            if (parent) {
+                final List<Object> values = new ArrayList<>(1);
+                values.add("p" + i % 10);
+                fields.put("_parent", new InternalSearchHitField("_parent", values));
+            }
+            final InternalSearchHit hit = new InternalSearchHit(i, Integer.toString(i), new Text(TYPE), fields);
+            hit.sourceRef(createSource(i));
+            hits[i] = hit;
+        }
+    }
+
+    private BytesReference createSource(final int id) throws IOException {
+        final XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+        builder.field("id", id);
+        builder.field("msg", "test " + id);
+        // bytes() closes the builder, so the size is counted here
+        int size = 0;
+        for (int n = 0; size < docSize; n++) {
+            final String name = "field" + n;
+            final String value = "value " + n + " of the document " + id;
+            builder.field(name, value);
+            size += name.length() + value.length() + 6;
+        }
+        return builder.endObject().bytes();
+    }
+
+    /**
+     * Index requests with _source parsed to a map, as with a transform.
+     */
+    @Benchmark
+    public int localMap() {
+        int size = 0;
+        for (final SearchHit hit : hits) {
+            final Map<String, Object> source = XContentHelper.convertToMap(hit.sourceRef(), false).v2();
+            final IndexRequest request = new IndexRequest(INDEX, TYPE, hit.getId()).source(source);
+            final String parentId = BulkBody.getFieldValue(hit, "_parent");
+            if (parentId != null) {
+                request.parent(parentId);
+            }
+            size += request.source().length();
+        }
+        return size;
+    }
+
+    /**
+     * Index requests with raw _source bytes.
+     */
+    @Benchmark
+    public int localBytes() {
+        int size = 0;
+        for (final SearchHit hit : hits) {
+            final IndexRequest request = new IndexRequest(INDEX, TYPE, hit.getId()).source(hit.sourceRef());
+            final String parentId = BulkBody.getFieldValue(hit, "_parent");
+            if (parentId != null) {
+                request.parent(parentId);
+            }
+            size += request.source().length();
+        }
+        return size;
+    }
+
+    /**
+     * Bulk body through a writer, decoding each _source to a string.
+     */
+    @Benchmark
+    public int remoteWriter() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(PAGE_SIZE * (docSize + 100));
+        try (Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+            for (final SearchHit hit : hits) {
+                BulkBody.writeLines(writer, action(hit), hit.sourceAsString());
+            }
+        }
+        return out.size();
+    }
+
+    /**
+     * Bulk body streaming _source bytes.
+     */
+    @Benchmark
+    public int remoteBytes() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(PAGE_SIZE * (docSize + 100));
+        for (final SearchHit hit : hits) {
+            BulkBody.writeLines(out, action(hit), hit.sourceRef());
+        }
+        return out.size();
+    }
+
+    private String action(final SearchHit hit) {
+        buf.setLength(0);
+        final String parentId = BulkBody.getFieldValue(hit, "_parent");
+        BulkBody.appendAction(buf, false, INDEX, TYPE, hit.getId(), parentId);
+        buf.append("}}");
+        return buf.toString();
+    }
+}
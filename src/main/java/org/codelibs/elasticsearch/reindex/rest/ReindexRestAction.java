@@ -11,6 +11,7 @@ import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.json.JsonXContent;
 import org.elasticsearch.rest.BaseRestHandler;
@@ -21,6 +22,8 @@ import org.elasticsearch.rest.RestRequest;
 
 public class ReindexRestAction extends BaseRestHandler {
 
+    private static final TimeValue DEFAULT_WAIT_TIMEOUT = TimeValue.timeValueSeconds(30);
+
     // Handler中内置了ReindexingService服务,采用Guice注入
     private ReindexingService reindexingService;
 
@@ -33,6 +36,8 @@ public class ReindexRestAction extends BaseRestHandler {
 
         restController.registerHandler(RestRequest.Method.GET,
                 "/_reindex", this);
+        restController.registerHandler(RestRequest.Method.GET,
+                "/_reindex/_history", this);
         restController.registerHandler(RestRequest.Method.GET,
                 "/_reindex/{name}", this);
 
@@ -44,6 +49,11 @@ public class ReindexRestAction extends BaseRestHandler {
                 "/{index}/_reindex/{toindex}/{totype}", this);
         restController.registerHandler(RestRequest.Method.POST,
                 "/{index}/_reindex/{toindex}", this);
+        // source_file
+        restController.registerHandler(RestRequest.Method.POST,
+                "/_reindex/{toindex}/{totype}", this);
+        restController.registerHandler(RestRequest.Method.POST,
+                "/_reindex/{toindex}", this);
 
         restController.registerHandler(RestRequest.Method.DELETE,
                 "/_reindex/{name}", this);
@@ -58,19 +68,90 @@ public class ReindexRestAction extends BaseRestHandler {
         try {
             switch (request.method()) {
             case GET:
-                name = request.param("name");
-                params = new LinkedHashMap<String, Object>();
-                if (name == null) {
-                    params.put("names", reindexingService.getNames());
-                } else {
-                    params.put("name", name);
-                    params.put("found", reindexingService.exists(name));
+                if (request.path().endsWith("/_history")) {
+                    reindexingService.getHistory(request, new ActionListener<Map<String, Object>>() {
+                        @Override
+                        public void onResponse(final Map<String, Object> response) {
+                            sendResponse(request, channel, response);
+                        }
+
+                        @Override
+                        public void onFailure(final Throwable e) {
+                            sendErrorResponse(channel, e);
+                        }
+                    });
+                    break;
                 }
-                sendResponse(request, channel, params);
+                final String getName = request.param("name");
+                // long polling of a job started on this node
+                if (getName != null && request.paramAsBoolean("wait_for_completion", false)
+                        && reindexingService.waitForCompletion(getName,
+                                request.paramAsTime("timeout", DEFAULT_WAIT_TIMEOUT), progressListener(request, channel))) {
+                    break;
+                }
+                // processes on all nodes
+                reindexingService.getStats(getName, new ActionListener<Map<String, Map<String, Object>>>() {
+                    @Override
+                    public void onResponse(final Map<String, Map<String, Object>> response) {
+                        final Map<String, Object> params = new LinkedHashMap<String, Object>();
+                        if (getName == null) {
+                            params.put("names", response.keySet());
+                        } else {
+                            params.put("name", getName);
+                            final Map<String, Object> stats = response.get(getName);
+                            params.put("found", stats != null);
+                            if (stats != null) {
+                                params.put("stats", stats);
+                            }
+                        }
+                        sendResponse(request, channel, params);
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable e) {
+                        sendErrorResponse(channel, e);
+                    }
+                });
                 break;
             case POST:
+                if (request.paramAsBoolean("dry_run", false)) {
+                    reindexingService.plan(request.params(), request.hasContent() ? request.content() : null,
+                            new ActionListener<Map<String, Object>>() {
+                                @Override
+                                public void onResponse(final Map<String, Object> response) {
+                                    final Map<String, Object> params = new LinkedHashMap<String, Object>();
+                                    params.put("dry_run", response);
+                                    sendResponse(request, channel, params);
+                                }
+
+                                @Override
+                                public void onFailure(final Throwable e) {
+                                    sendErrorResponse(channel, e);
+                                }
+                            });
+                    break;
+                }
                 final boolean waitForCompletion = request.paramAsBoolean("wait_for_completion", false);
-                name = reindexingService.execute(request,
+                if (waitForCompletion && request.hasParam("timeout")) {
+                    // the result, or the progress at the timeout
+                    name = reindexingService.execute(request.params(),
+                            request.hasContent() ? request.content() : null,
+                            new ActionListener<Void>() {
+                                @Override
+                                public void onResponse(final Void response) {
+                                    // received by the waiter
+                                }
+
+                                @Override
+                                public void onFailure(final Throwable e) {
+                                    // received by the waiter
+                                }
+                            });
+                    reindexingService.waitForCompletion(name, request.paramAsTime("timeout", DEFAULT_WAIT_TIMEOUT),
+                            progressListener(request, channel));
+                    break;
+                }
+                name = reindexingService.execute(request.params(),
                         request.hasContent() ? request.content() : null,
                         new ActionListener<Void>() {
                             @Override
@@ -94,11 +175,25 @@ public class ReindexRestAction extends BaseRestHandler {
                 }
                 break;
             case DELETE:
-                name = request.param("name");
-                params = new LinkedHashMap<String, Object>();
-                params.put("name", name);
-                reindexingService.delete(name);
-                sendResponse(request, channel, params);
+                final String deleteName = request.param("name");
+                reindexingService.delete(deleteName, new ActionListener<Map<String, Map<String, Object>>>() {
+                    @Override
+                    public void onResponse(final Map<String, Map<String, Object>> response) {
+                        if (response.containsKey(deleteName)) {
+                            final Map<String, Object> params = new LinkedHashMap<String, Object>();
+                            params.put("name", deleteName);
+                            sendResponse(request, channel, params);
+                        } else {
+                            sendErrorResponse(channel, new ReindexingException(
+                                    "Reindexing process " + deleteName + " is not found."));
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable e) {
+                        sendErrorResponse(channel, e);
+                    }
+                });
                 break;
             default:
                 sendErrorResponse(channel, new ReindexingException(
@@ -110,6 +205,28 @@ public class ReindexRestAction extends BaseRestHandler {
         }
     }
 
+    private ActionListener<Map<String, Object>> progressListener(final RestRequest request,
+            final RestChannel channel) {
+        return new ActionListener<Map<String, Object>>() {
+            @Override
+            public void onResponse(final Map<String, Object> response) {
+                if (response.containsKey("error")) {
+                    sendErrorResponse(channel, new ReindexingException(response.get("error").toString()));
+                    return;
+                }
+                final Map<String, Object> params = new LinkedHashMap<String, Object>();
+                params.put("found", true);
+                params.putAll(response);
+                sendResponse(request, channel, params);
+            }
+
+            @Override
+            public void onFailure(final Throwable e) {
+                sendErrorResponse(channel, e);
+            }
+        };
+    }
+
     private void sendResponse(final RestRequest request,
             final RestChannel channel, final Map<String, Object> params) {
         try {
@@ -0,0 +1,100 @@
+package org.codelibs.elasticsearch.reindex.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHitField;
+
+/**
+ * Builds lines of a bulk request body from search hits.
+ * These are called for each document, and measured by benchmarks in src/jmh/java.
+ */
+public final class BulkBody {
+
+    private BulkBody() {
+    }
+
+    /**
+     * Append an action line without the closing "}}",
+     * so that the caller can add more metadata.
+     *
+     * @param buf    buffer for the line
+     * @param create true for a create action, or false for an index action
+     * @param index  target index
+     * @param type   target type
+     * @param id     document id
+     * @param parent parent id, or null
+     */
+    public static void appendAction(final StringBuilder buf, final boolean create, final String index,
+            final String type, final String id, final String parent) {
+        buf.append(create ? "{\"create\":{\"_index\":" : "{\"index\":{\"_index\":");
+        appendString(buf, index);
+        buf.append(",\"_type\":");
+        appendString(buf, type);
+        buf.append(",\"_id\":");
+        appendString(buf, id);
+        if (parent != null) {
+            buf.append(",\"_parent\":");
+            appendString(buf, parent);
+        }
+    }
+
+    /**
+     * Append a value as a quoted JSON string, escaping it only if needed.
+     */
+    public static void appendString(final StringBuilder buf, final String value) {
+        buf.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c < 0x20 || c == '"' || c == '\\') {
+                buf.append(JsonStringEncoder.getInstance().quoteAsString(value));
+                buf.append('"');
+                return;
+            }
+        }
+        buf.append(value);
+        buf.append('"');
+    }
+
+    /**
+     * Write an action line and a source line to a writer.
+     */
+    public static void writeLines(final Writer writer, final String action, final String source) throws IOException {
+        writer.write(action);
+        writer.write('\n');
+        writer.write(source);
+        writer.write('\n');
+    }
+
+    /**
+     * Write an action line and a source line to a stream.
+     * The source is written as is, without decoding it to a string.
+     */
+    public static void writeLines(final OutputStream out, final String action, final BytesReference source)
+            throws IOException {
+        out.write(action.getBytes(StandardCharsets.UTF_8));
+        out.write('\n');
+        source.writeTo(out);
+        out.write('\n');
+    }
+
+    /**
+     * @return the first value of the field, or null
+     */
+    public static <T> T getFieldValue(final SearchHit hit, final String name) {
+        final Map<String, SearchHitField> fields = hit.getFields();
+        if (fields != null) {
+            final SearchHitField field = fields.get(name);
+            if (field != null) {
+                return field.getValue();
+            }
+        }
+        return null;
+    }
+}
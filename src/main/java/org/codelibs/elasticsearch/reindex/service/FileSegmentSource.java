@@ -0,0 +1,247 @@
+package org.codelibs.elasticsearch.reindex.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.codelibs.elasticsearch.reindex.exception.ReindexingException;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.text.Text;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.search.SearchShardTarget;
+import org.elasticsearch.search.internal.InternalSearchHit;
+
+/**
+ * Reads a segment written by {@link FileSink} through a memory-mapped buffer.
+ */
+public class FileSegmentSource implements PageSource {
+
+    private static final String FILE_NODE_ID = "_file";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path path;
+
+    private final int size;
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    private int pos;
+
+    private int limit;
+
+    private InputStream in;
+
+    /**
+     * @param path segment file
+     * @param size number of documents in a page
+     */
+    public FileSegmentSource(final Path path, final int size) {
+        this.path = path;
+        this.size = size;
+    }
+
+    /**
+     * @param dir directory written by {@link FileSink}
+     * @return segment files in the manifest
+     */
+    @SuppressWarnings("unchecked")
+    public static List<Path> readManifest(final Path dir) {
+        final Path manifest = dir.resolve(FileSink.MANIFEST);
+        try {
+            final Map<String, Object> map = XContentHelper.convertToMap(
+                    new BytesArray(Files.readAllBytes(manifest)), false).v2();
+            final List<Path> segments = new ArrayList<>();
+            final Object value = map.get("segments");
+            if (value instanceof List) {
+                for (final Object segment : (List<Object>) value) {
+                    final Path path = dir.resolve(((Map<String, Object>) segment)
+                            .get("name").toString()).normalize();
+                    // segments are in the directory of the manifest
+                    if (!path.startsWith(dir.normalize())) {
+                        throw new ReindexingException("Invalid segment in " + manifest + ": " + path);
+                    }
+                    segments.add(path);
+                }
+            }
+            return segments;
+        } catch (final IOException e) {
+            throw new ReindexingException("Failed to read " + manifest, e);
+        }
+    }
+
+    @Override
+    public Page first() {
+        try {
+            final ByteBuffer mapped;
+            try (FileChannel channel = FileChannel.open(path,
+                    StandardOpenOption.READ)) {
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new ReindexingException(path + " is too large.");
+                }
+                // the mapping is valid after the channel is closed
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                        channel.size());
+            }
+            in = new GZIPInputStream(new ByteBufferInputStream(mapped),
+                    BUFFER_SIZE);
+        } catch (final IOException e) {
+            throw new ReindexingException("Failed to open " + path, e);
+        }
+        return next(null);
+    }
+
+    @Override
+    public Page next(final String scrollId) {
+        final List<SearchHit> hits = new ArrayList<>(size);
+        try {
+            while (hits.size() < size) {
+                final BytesReference action = readLine();
+                if (action == null) {
+                    break;
+                }
+                final BytesReference source = readLine();
+                if (source == null) {
+                    throw new ReindexingException("No source for " + action.toUtf8()
+                            + " in " + path);
+                }
+                hits.add(newHit(action, source));
+            }
+        } catch (final IOException e) {
+            throw new ReindexingException("Failed to read " + path, e);
+        }
+        if (hits.isEmpty()) {
+            clear(scrollId);
+        }
+        return new Page(path.toString(), hits.toArray(new SearchHit[hits.size()]));
+    }
+
+    @Override
+    public void clear(final String scrollId) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (final IOException e) {
+                // ignore
+            }
+            in = null;
+        }
+    }
+
+    private SearchHit newHit(final BytesReference action,
+            final BytesReference source) throws IOException {
+        String index = null;
+        String type = null;
+        String id = null;
+        long version = -1;
+        final Map<String, SearchHitField> fields = new HashMap<>();
+        try (XContentParser parser = JsonXContent.jsonXContent
+                .createParser(action)) {
+            String currentName = null;
+            XContentParser.Token token;
+            while ((token = parser.nextToken()) != null) {
+                if (token == XContentParser.Token.FIELD_NAME) {
+                    currentName = parser.currentName();
+                } else if (token.isValue()) {
+                    if ("_index".equals(currentName)) {
+                        index = parser.text();
+                    } else if ("_type".equals(currentName)) {
+                        type = parser.text();
+                    } else if ("_id".equals(currentName)) {
+                        id = parser.text();
+                    } else if ("_version".equals(currentName)) {
+                        version = parser.longValue();
+                    } else {
+                        RemoteScroll.addField(fields, currentName,
+                                parser.objectText());
+                    }
+                }
+            }
+        }
+        final InternalSearchHit hit = new InternalSearchHit(-1, id, new Text(
+                type), fields);
+        hit.shardTarget(new SearchShardTarget(FILE_NODE_ID, index, -1));
+        hit.sourceRef(source);
+        hit.version(version);
+        return hit;
+    }
+
+    private BytesReference readLine() throws IOException {
+        BytesStreamOutput line = null;
+        while (true) {
+            if (pos == limit) {
+                limit = in.read(buffer, 0, buffer.length);
+                pos = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return line != null && line.size() > 0 ? line.bytes() : null;
+                }
+            }
+            final int start = pos;
+            while (pos < limit && buffer[pos] != '\n') {
+                pos++;
+            }
+            if (pos < limit) {
+                final BytesReference result;
+                if (line == null) {
+                    result = new BytesArray(Arrays.copyOfRange(buffer, start, pos));
+                } else {
+                    line.write(buffer, start, pos - start);
+                    result = line.bytes();
+                }
+                pos++;
+                return result;
+            }
+            // a line continues to the next chunk
+            if (line == null) {
+                line = new BytesStreamOutput();
+            }
+            line.write(buffer, start, pos - start);
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            final int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
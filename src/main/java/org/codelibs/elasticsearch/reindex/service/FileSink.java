@@ -0,0 +1,146 @@
+package org.codelibs.elasticsearch.reindex.service;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.codelibs.elasticsearch.reindex.exception.ReindexingException;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+
+/**
+ * Writes bulk actions and sources to gzipped NDJSON segments in a directory.
+ * A segment is rolled over when its uncompressed size reaches the segment size,
+ * and a manifest listing the segments is written on close.
+ */
+public class FileSink implements Closeable {
+
+    public static final String MANIFEST = "manifest.json";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final byte NEW_LINE = '\n';
+
+    private final Path dir;
+
+    private final long segmentSize;
+
+    private final String index;
+
+    private final String type;
+
+    private final List<Map<String, Object>> segments = new ArrayList<>();
+
+    private OutputStream out;
+
+    private String segmentName;
+
+    private long segmentDocs;
+
+    private long segmentBytes;
+
+    private long docs;
+
+    public FileSink(final Path dir, final long segmentSize, final String index,
+            final String type) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.index = index;
+        this.type = type;
+        if (Files.exists(dir.resolve(MANIFEST))) {
+            throw new ReindexingException(dir + " already has " + MANIFEST);
+        }
+    }
+
+    /**
+     * @param action bulk action line
+     * @param source _source in JSON without new lines
+     */
+    public void add(final String action, final BytesReference source)
+            throws IOException {
+        if (out == null) {
+            openSegment();
+        }
+        final byte[] actionBytes = action.getBytes(StandardCharsets.UTF_8);
+        out.write(actionBytes);
+        out.write(NEW_LINE);
+        source.writeTo(out);
+        out.write(NEW_LINE);
+        segmentDocs++;
+        docs++;
+        segmentBytes += actionBytes.length + source.length() + 2;
+        if (segmentBytes >= segmentSize) {
+            closeSegment();
+        }
+    }
+
+    private void openSegment() throws IOException {
+        Files.createDirectories(dir);
+        segmentName = String.format(Locale.ROOT, "segment-%05d.ndjson.gz",
+                segments.size());
+        // segments are written sequentially through a file channel
+        final FileChannel channel = FileChannel.open(dir.resolve(segmentName),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        out = new BufferedOutputStream(new GZIPOutputStream(
+                Channels.newOutputStream(channel), BUFFER_SIZE), BUFFER_SIZE);
+        segmentDocs = 0;
+        segmentBytes = 0;
+    }
+
+    private void closeSegment() throws IOException {
+        out.close();
+        out = null;
+        final Map<String, Object> segment = new LinkedHashMap<>();
+        segment.put("name", segmentName);
+        segment.put("docs", segmentDocs);
+        segment.put("bytes", segmentBytes);
+        segments.add(segment);
+    }
+
+    /**
+     * Close the current segment and write the manifest.
+     */
+    @Override
+    public void close() throws IOException {
+        if (out != null) {
+            closeSegment();
+        }
+        Files.createDirectories(dir);
+        final XContentBuilder builder = XContentFactory.jsonBuilder();
+        builder.startObject();
+        builder.field("index", index);
+        builder.field("type", type);
+        builder.field("docs", docs);
+        builder.field("segments", segments);
+        builder.endObject();
+        Files.write(dir.resolve(MANIFEST), builder.bytes().toBytes());
+    }
+
+    /**
+     * Close the current segment without a manifest.
+     */
+    public void abort() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (final IOException e) {
+                // ignore
+            }
+            out = null;
+        }
+    }
+}
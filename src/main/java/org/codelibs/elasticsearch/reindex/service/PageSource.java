@@ -0,0 +1,51 @@
+package org.codelibs.elasticsearch.reindex.service;
+
+import org.elasticsearch.search.SearchHit;
+
+/**
+ * A source of pages which is not a scroll search on the local cluster.
+ * Methods may block, so they are called on the generic thread pool.
+ */
+public interface PageSource {
+
+    /**
+     * @return the first page
+     */
+    Page first();
+
+    /**
+     * @param scrollId scroll id of the previous page
+     * @return the next page, which has no hits at the end
+     */
+    Page next(String scrollId);
+
+    /**
+     * Release resources when the process is stopped.
+     *
+     * @param scrollId scroll id of the last page
+     */
+    void clear(String scrollId);
+
+    /**
+     * A page of hits.
+     */
+    class Page {
+
+        private final String scrollId;
+
+        private final SearchHit[] hits;
+
+        public Page(final String scrollId, final SearchHit[] hits) {
+            this.scrollId = scrollId;
+            this.hits = hits;
+        }
+
+        public String getScrollId() {
+            return scrollId;
+        }
+
+        public SearchHit[] getHits() {
+            return hits;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package org.codelibs.elasticsearch.reindex.service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.hash.MurmurHash3;
+import org.elasticsearch.common.xcontent.XContentHelper;
+
+/**
+ * Document counts and checksums of an index, partitioned by the hash of _id.
+ * A checksum is the sum of 64-bit hashes of _id and _source, so scrolls in any order give the same sums,
+ * but differences which cancel out in a sum are missed with a probability of about 2^-64.
+ */
+public class PartitionChecksums {
+
+    private final long[] counts;
+
+    private final long[] sums;
+
+    /**
+     * @param partitions number of partitions
+     */
+    public PartitionChecksums(final int partitions) {
+        counts = new long[partitions];
+        sums = new long[partitions];
+    }
+
+    /**
+     * @param id     _id of a document
+     * @param source _source of the document, or null to check only ids
+     */
+    public void add(final String id, final BytesReference source) throws IOException {
+        final byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        final MurmurHash3.Hash128 idHash = MurmurHash3.hash128(idBytes, 0, idBytes.length, 0, new MurmurHash3.Hash128());
+        long hash = idHash.h1 ^ idHash.h2;
+        if (source != null) {
+            // JSON and SMILE sources are compared as the same compact JSON
+            final byte[] json = XContentHelper.convertToJson(source, true).getBytes(StandardCharsets.UTF_8);
+            final MurmurHash3.Hash128 sourceHash = MurmurHash3.hash128(json, 0, json.length, idHash.h1,
+                    new MurmurHash3.Hash128());
+            hash += sourceHash.h1 ^ sourceHash.h2;
+        }
+        final int partition = partition(idHash, counts.length);
+        synchronized (this) {
+            counts[partition]++;
+            sums[partition] += hash;
+        }
+    }
+
+    /**
+     * @return partition of a document, which is selected by "hash_partitions" of a reindexing job
+     */
+    public static int partition(final String id, final int partitions) {
+        final byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        return partition(MurmurHash3.hash128(idBytes, 0, idBytes.length, 0, new MurmurHash3.Hash128()), partitions);
+    }
+
+    private static int partition(final MurmurHash3.Hash128 idHash, final int partitions) {
+        return (int) ((idHash.h1 & Long.MAX_VALUE) % partitions);
+    }
+
+    public synchronized long getCount() {
+        long count = 0;
+        for (final long value : counts) {
+            count += value;
+        }
+        return count;
+    }
+
+    /**
+     * @return partitions which have different counts or checksums
+     */
+    public synchronized List<Integer> diff(final PartitionChecksums other) {
+        final List<Integer> partitions = new ArrayList<>();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != other.counts[i] || sums[i] != other.sums[i]) {
+                partitions.add(i);
+            }
+        }
+        return partitions;
+    }
+}
@@ -0,0 +1,38 @@
+package org.codelibs.elasticsearch.reindex.service;
+
+import java.io.IOException;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.transport.TransportRequest;
+
+/**
+ * A request to stop a reindexing process on another node.
+ */
+public class ReindexCancelRequest extends TransportRequest {
+
+    private String name;
+
+    public ReindexCancelRequest() {
+    }
+
+    public ReindexCancelRequest(final String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void readFrom(final StreamInput in) throws IOException {
+        super.readFrom(in);
+        name = in.readString();
+    }
+
+    @Override
+    public void writeTo(final StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeString(name);
+    }
+}
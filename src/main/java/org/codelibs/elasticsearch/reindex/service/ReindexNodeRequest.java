@@ -0,0 +1,51 @@
+package org.codelibs.elasticsearch.reindex.service;
+
+import java.io.IOException;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.transport.TransportRequest;
+
+/**
+ * A request to get, or stop, reindexing processes running on a node.
+ */
+public class ReindexNodeRequest extends TransportRequest {
+
+    private String name;
+
+    private boolean cancel;
+
+    public ReindexNodeRequest() {
+    }
+
+    /**
+     * @param name   reindexing name, or null for all processes
+     * @param cancel true if the processes are stopped
+     */
+    public ReindexNodeRequest(final String name, final boolean cancel) {
+        this.name = name;
+        this.cancel = cancel;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isCancel() {
+        return cancel;
+    }
+
+    @Override
+    public void readFrom(final StreamInput in) throws IOException {
+        super.readFrom(in);
+        name = in.readOptionalString();
+        cancel = in.readBoolean();
+    }
+
+    @Override
+    public void writeTo(final StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeOptionalString(name);
+        out.writeBoolean(cancel);
+    }
+}
@@ -0,0 +1,48 @@
+package org.codelibs.elasticsearch.reindex.service;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.transport.TransportResponse;
+
+/**
+ * Stats of reindexing processes on a node, by reindexing name.
+ */
+public class ReindexNodeResponse extends TransportResponse {
+
+    private Map<String, Map<String, Object>> stats;
+
+    public ReindexNodeResponse() {
+    }
+
+    public ReindexNodeResponse(final Map<String, Map<String, Object>> stats) {
+        this.stats = stats;
+    }
+
+    public Map<String, Map<String, Object>> getStats() {
+        return stats;
+    }
+
+    @Override
+    public void readFrom(final StreamInput in) throws IOException {
+        super.readFrom(in);
+        final int size = in.readVInt();
+        stats = new HashMap<>(size);
+        for (int i = 0; i < size; i++) {
+            stats.put(in.readString(), in.readMap());
+        }
+    }
+
+    @Override
+    public void writeTo(final StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeVInt(stats.size());
+        for (final Map.Entry<String, Map<String, Object>> entry : stats.entrySet()) {
+            out.writeString(entry.getKey());
+            out.writeMap(entry.getValue());
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.codelibs.elasticsearch.reindex.service;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.transport.TransportRequest;
+
+/**
+ * A request to reindex one shard on the node which holds it.
+ */
+public class ReindexShardRequest extends TransportRequest {
+
+    private String name;
+
+    private Map<String, String> params;
+
+    private BytesReference content;
+
+    public ReindexShardRequest() {
+    }
+
+    public ReindexShardRequest(final String name, final Map<String, String> params, final BytesReference content) {
+        this.name = name;
+        this.params = params;
+        this.content = content;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Map<String, String> getParams() {
+        return params;
+    }
+
+    public BytesReference getContent() {
+        return content;
+    }
+
+    @Override
+    public void readFrom(final StreamInput in) throws IOException {
+        super.readFrom(in);
+        name = in.readString();
+        final int size = in.readVInt();
+        params = new HashMap<>(size);
+        for (int i = 0; i < size; i++) {
+            params.put(in.readString(), in.readString());
+        }
+        if (in.readBoolean()) {
+            content = in.readBytesReference();
+        }
+    }
+
+    @Override
+    public void writeTo(final StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeString(name);
+        out.writeVInt(params.size());
+        for (final Map.Entry<String, String> entry : params.entrySet()) {
+            out.writeString(entry.getKey());
+            out.writeString(entry.getValue());
+        }
+        out.writeBoolean(content != null);
+        if (content != null) {
+            out.writeBytesReference(content);
+        }
+    }
+}
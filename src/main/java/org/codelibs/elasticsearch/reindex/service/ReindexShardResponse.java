@@ -0,0 +1,42 @@
+package org.codelibs.elasticsearch.reindex.service;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.transport.TransportResponse;
+
+/**
+ * Stats of a finished shard, sent back to the coordinating node.
+ */
+public class ReindexShardResponse extends TransportResponse {
+
+    private Map<String, Object> stats;
+
+    public ReindexShardResponse() {
+    }
+
+    public ReindexShardResponse(final Map<String, Object> stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * @return stats of the worker, from {@link ReindexingStats#toMap()}
+     */
+    public Map<String, Object> getStats() {
+        return stats;
+    }
+
+    @Override
+    public void readFrom(final StreamInput in) throws IOException {
+        super.readFrom(in);
+        stats = in.readMap();
+    }
+
+    @Override
+    public void writeTo(final StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeMap(stats);
+    }
+}
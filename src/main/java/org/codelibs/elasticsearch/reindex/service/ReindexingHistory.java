@@ -0,0 +1,128 @@
+package org.codelibs.elasticsearch.reindex.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.ToXContent.Params;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.indices.IndexAlreadyExistsException;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.sort.SortOrder;
+
+/**
+ * Records of finished reindexing jobs in an index of the local cluster.
+ * The index is created with the first record, and strings in it are not analyzed.
+ */
+public class ReindexingHistory {
+
+    private static final String TYPE = "job";
+
+    private final Client client;
+
+    private final String index;
+
+    private volatile boolean indexCreated = false;
+
+    /**
+     * @param client client of the local cluster
+     * @param index  name of the history index
+     */
+    public ReindexingHistory(final Client client, final String index) {
+        this.client = client;
+        this.index = index;
+    }
+
+    /**
+     * Index a record of a job. This method blocks.
+     *
+     * @param name   reindexing name, used as _id
+     * @param record fields of the record
+     */
+    public void write(final String name, final Map<String, Object> record) throws IOException {
+        if (!indexCreated) {
+            createIndex();
+        }
+        client.prepareIndex(index, TYPE, name).setSource(record).execute().actionGet();
+    }
+
+    private void createIndex() throws IOException {
+        if (!client.admin().indices().prepareExists(index).execute().actionGet().isExists()) {
+            final XContentBuilder mapping = XContentFactory.jsonBuilder().startObject().startObject(TYPE)
+                    .startArray("dynamic_templates")
+                    .startObject().startObject("strings").field("match_mapping_type", "string")
+                    .startObject("mapping").field("type", "string").field("index", "not_analyzed").endObject()
+                    .endObject().endObject()
+                    .endArray()
+                    .startObject("properties")
+                    .startObject("error").field("type", "string").endObject()
+                    .endObject()
+                    .endObject().endObject();
+            try {
+                client.admin().indices().prepareCreate(index)
+                        .setSettings(Settings.settingsBuilder().put("index.number_of_shards", 1)
+                                .put("index.auto_expand_replicas", "0-1"))
+                        .addMapping(TYPE, mapping).execute().actionGet();
+            } catch (final Exception e) {
+                // created by another node
+                if (!(ExceptionsHelper.unwrapCause(e) instanceof IndexAlreadyExistsException)) {
+                    throw e;
+                }
+            }
+        }
+        indexCreated = true;
+    }
+
+    /**
+     * Search records, the last finished first.
+     * "state", "index" and "toindex" params filter records, and "from" and "size" page them.
+     *
+     * @param params   request parameters
+     * @param listener receives "total" and "history"
+     */
+    public void search(final Params params, final ActionListener<Map<String, Object>> listener) {
+        final BoolQueryBuilder query = QueryBuilders.boolQuery();
+        if (params.param("state") != null) {
+            query.filter(QueryBuilders.termQuery("state", params.param("state")));
+        }
+        if (params.param("index") != null) {
+            query.filter(QueryBuilders.termQuery("params.index", params.param("index")));
+        }
+        if (params.param("toindex") != null) {
+            query.filter(QueryBuilders.termQuery("params.toindex", params.param("toindex")));
+        }
+        client.prepareSearch(index).setTypes(TYPE).setIndicesOptions(IndicesOptions.lenientExpandOpen())
+                .setQuery(query).addSort("end_time_in_millis", SortOrder.DESC)
+                .setFrom(Integer.parseInt(params.param("from", "0")))
+                .setSize(Integer.parseInt(params.param("size", "10")))
+                .execute(new ActionListener<SearchResponse>() {
+                    @Override
+                    public void onResponse(final SearchResponse response) {
+                        final List<Map<String, Object>> records = new ArrayList<>();
+                        for (final SearchHit hit : response.getHits().getHits()) {
+                            records.add(hit.getSource());
+                        }
+                        final Map<String, Object> result = new LinkedHashMap<>();
+                        result.put("total", response.getHits().getTotalHits());
+                        result.put("history", records);
+                        listener.onResponse(result);
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable e) {
+                        listener.onFailure(e);
+                    }
+                });
+    }
+}
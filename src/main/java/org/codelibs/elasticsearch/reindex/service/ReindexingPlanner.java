@@ -0,0 +1,224 @@
+package org.codelibs.elasticsearch.reindex.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.codelibs.elasticsearch.reindex.exception.ReindexingException;
+import org.codelibs.elasticsearch.runner.net.Curl;
+import org.codelibs.elasticsearch.runner.net.CurlResponse;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.xcontent.ToXContent.Params;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.search.SearchHit;
+
+/**
+ * Estimates the cost of a reindexing process without running it.
+ * A few pages are scrolled from the source, and a bulk request of the sampled documents
+ * is sent to a temporary index next to the target, which is deleted after that.
+ * Methods block, so they are called on the generic thread pool.
+ */
+public class ReindexingPlanner {
+
+    /** bulk requests around this size are recommended */
+    private static final long TARGET_BULK_BYTES = ByteSizeValue.parseBytesSizeValue("10mb", "bulk").bytes();
+
+    private final Client client;
+
+    /**
+     * @param client client of the local cluster
+     */
+    public ReindexingPlanner(final Client client) {
+        this.client = client;
+    }
+
+    /**
+     * @param params       request parameters
+     * @param content      search request, or null
+     * @param targetClient client of the target cluster, or null if the target is given by url
+     * @return estimations and recommended parameters
+     */
+    public Map<String, Object> plan(final Params params, final BytesReference content, final Client targetClient)
+            throws IOException {
+        final String fromIndex = params.param("index");
+        if (fromIndex == null) {
+            throw new ReindexingException("index is blank.");
+        }
+        final String toIndex = params.param("toindex");
+        if (toIndex == null) {
+            throw new ReindexingException("toindex is blank.");
+        }
+        if (params.param("source_url") != null || params.param("source_file") != null) {
+            throw new ReindexingException("dry_run is available only for the local cluster.");
+        }
+        final int size = Integer.parseInt(params.param("size", "1000"));
+        final int pages = Integer.parseInt(params.param("dry_run_pages", "3"));
+
+        // sample pages from the source
+        final SearchRequestBuilder builder = client.prepareSearch(Strings.splitStringByCommaToArray(fromIndex))
+                .setScroll("1m").setSize(size);
+        final String fromType = params.param("type");
+        if (fromType != null && fromType.trim().length() > 0) {
+            builder.setTypes(fromType.split(","));
+        }
+        if (content != null && content.length() > 0) {
+            builder.setExtraSource(content);
+        }
+        final List<SearchHit> samples = new ArrayList<>();
+        long readNanos = System.nanoTime();
+        SearchResponse response = builder.execute().actionGet();
+        final long totalDocs = response.getHits().getTotalHits();
+        final int shards = response.getTotalShards();
+        try {
+            for (int i = 0; i < pages && response.getHits().getHits().length > 0; i++) {
+                for (final SearchHit hit : response.getHits().getHits()) {
+                    if (hit.sourceRef() != null) {
+                        samples.add(hit);
+                    }
+                }
+                if (i + 1 < pages) {
+                    response = client.prepareSearchScroll(response.getScrollId()).setScroll("1m").execute().actionGet();
+                }
+            }
+        } finally {
+            client.prepareClearScroll().addScrollId(response.getScrollId()).execute();
+        }
+        readNanos = System.nanoTime() - readNanos;
+
+        final Map<String, Object> result = new LinkedHashMap<>();
+        result.put("docs", totalDocs);
+        result.put("shards", shards);
+        result.put("sampled_docs", samples.size());
+        if (samples.isEmpty()) {
+            result.put("total_bytes", 0);
+            result.put("estimated_time_in_millis", 0);
+            return result;
+        }
+
+        // bulk body as sent to a remote cluster, and the same documents in SMILE
+        long sourceBytes = 0;
+        long smileBytes = 0;
+        long convertNanos = System.nanoTime();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final StringBuilder buf = new StringBuilder(200);
+        for (final SearchHit hit : samples) {
+            sourceBytes += hit.sourceRef().length();
+            buf.setLength(0);
+            BulkBody.appendAction(buf, false, toIndex, hit.getType(), hit.getId(), null);
+            buf.append("}}");
+            BulkBody.writeLines(body, buf.toString(), hit.sourceRef());
+        }
+        convertNanos = System.nanoTime() - convertNanos;
+        long encodeNanos = System.nanoTime();
+        for (final SearchHit hit : samples) {
+            try (XContentParser parser = XContentFactory.xContent(hit.sourceRef()).createParser(hit.sourceRef())) {
+                parser.nextToken();
+                final XContentBuilder smile = XContentFactory.smileBuilder().copyCurrentStructure(parser);
+                smileBytes += smile.bytes().length();
+            }
+        }
+        encodeNanos = System.nanoTime() - encodeNanos;
+
+        final long bulkNanos = benchBulk(params, targetClient, samples);
+
+        final double avgDocBytes = (double) sourceBytes / samples.size();
+        final double nanosPerDoc = (double) (readNanos + convertNanos + bulkNanos) / samples.size();
+        int parallelism = 1;
+        if (params.paramAsBoolean("shard_local", false)) {
+            parallelism = shards;
+        } else if (params.param("partition_field") != null) {
+            parallelism = Integer.parseInt(params.param("partitions", "1"));
+        }
+        final long estimatedNanos = (long) (nanosPerDoc * totalDocs / parallelism);
+        final double smileRatio = (double) smileBytes / sourceBytes;
+
+        result.put("avg_doc_bytes", (long) avgDocBytes);
+        result.put("total_bytes", (long) (avgDocBytes * totalDocs));
+        result.put("read_time_in_millis", TimeUnit.NANOSECONDS.toMillis(readNanos));
+        result.put("convert_time_in_millis", TimeUnit.NANOSECONDS.toMillis(convertNanos));
+        result.put("bulk_time_in_millis", TimeUnit.NANOSECONDS.toMillis(bulkNanos));
+        result.put("smile_ratio", Math.round(smileRatio * 1000) / 1000.0);
+        result.put("smile_encode_time_in_millis", TimeUnit.NANOSECONDS.toMillis(encodeNanos));
+        result.put("parallelism", parallelism);
+        result.put("estimated_docs_per_sec", (long) (1000000000.0 / nanosPerDoc * parallelism));
+        result.put("estimated_time_in_millis", TimeUnit.NANOSECONDS.toMillis(estimatedNanos));
+
+        final Map<String, Object> recommended = new LinkedHashMap<>();
+        recommended.put("size", Math.max(100, Math.min(10000, (int) (TARGET_BULK_BYTES / Math.max(avgDocBytes, 1)))));
+        // one scroll per shard runs in parallel
+        recommended.put("shard_local", shards > 1);
+        if (params.param("url") != null) {
+            recommended.put("format", smileRatio < 0.8 ? "smile" : "json");
+        }
+        result.put("recommended", recommended);
+        return result;
+    }
+
+    /**
+     * @return nanoseconds to index the samples into a temporary index
+     */
+    private long benchBulk(final Params params, final Client targetClient, final List<SearchHit> samples)
+            throws IOException {
+        final String tempIndex = params.param("toindex") + "-dry-run-" + UUID.randomUUID().toString();
+        final String url = params.param("url");
+        if (url != null) {
+            final String baseUrl = url.endsWith("/") ? url : url + "/";
+            try (CurlResponse response = Curl.put(baseUrl + tempIndex).body("{}").execute()) {
+                if (response.getHttpStatusCode() != 200) {
+                    throw new ReindexingException("Failed to create " + tempIndex + " on " + url);
+                }
+            }
+            try {
+                final ByteArrayOutputStream body = new ByteArrayOutputStream();
+                final StringBuilder buf = new StringBuilder(200);
+                for (final SearchHit hit : samples) {
+                    buf.setLength(0);
+                    BulkBody.appendAction(buf, false, tempIndex, hit.getType(), hit.getId(), null);
+                    buf.append("}}");
+                    BulkBody.writeLines(body, buf.toString(), hit.sourceRef());
+                }
+                final long start = System.nanoTime();
+                try (CurlResponse response = Curl.post(baseUrl + "_bulk").body(body.toString("UTF-8")).execute()) {
+                    if (response.getHttpStatusCode() != 200) {
+                        throw new ReindexingException("The response code from " + url + " is "
+                                + response.getHttpStatusCode());
+                    }
+                }
+                return System.nanoTime() - start;
+            } finally {
+                Curl.delete(baseUrl + tempIndex).execute().close();
+            }
+        }
+
+        targetClient.admin().indices().prepareCreate(tempIndex).execute().actionGet();
+        try {
+            final BulkRequestBuilder bulkRequest = targetClient.prepareBulk();
+            for (final SearchHit hit : samples) {
+                bulkRequest.add(targetClient.prepareIndex(tempIndex, hit.getType(), hit.getId())
+                        .setSource(hit.sourceRef()));
+            }
+            final long start = System.nanoTime();
+            final BulkResponse response = bulkRequest.execute().actionGet();
+            if (response.hasFailures()) {
+                throw new ReindexingException(response.buildFailureMessage());
+            }
+            return System.nanoTime() - start;
+        } finally {
+            targetClient.admin().indices().prepareDelete(tempIndex).execute().actionGet();
+        }
+    }
+}
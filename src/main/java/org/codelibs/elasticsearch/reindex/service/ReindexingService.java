@@ -1,61 +1,256 @@
 package org.codelibs.elasticsearch.reindex.service;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.lucene.store.RateLimiter;
+import org.apache.lucene.util.BytesRef;
 import org.codelibs.elasticsearch.reindex.exception.ReindexingException;
+import org.codelibs.elasticsearch.reindex.transform.DocumentTransform;
+import org.codelibs.elasticsearch.reindex.transform.TransformChain;
 import org.codelibs.elasticsearch.runner.net.Curl;
 import org.codelibs.elasticsearch.runner.net.CurlException;
 import org.codelibs.elasticsearch.runner.net.CurlRequest;
 import org.codelibs.elasticsearch.runner.net.CurlRequest.ConnectionBuilder;
+import org.codelibs.elasticsearch.runner.net.CurlResponse;
 import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ExceptionsHelper;
 import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.cluster.shards.ClusterSearchShardsGroup;
+import org.elasticsearch.action.admin.cluster.shards.ClusterSearchShardsResponse;
 import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
 import org.elasticsearch.action.admin.indices.delete.DeleteIndexResponse;
+import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.bulk.BulkRequestBuilder;
 import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.delete.DeleteRequestBuilder;
 import org.elasticsearch.action.delete.DeleteResponse;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetRequestBuilder;
+import org.elasticsearch.action.get.MultiGetResponse;
 import org.elasticsearch.action.index.IndexRequestBuilder;
 import org.elasticsearch.action.search.ClearScrollResponse;
+import org.elasticsearch.action.search.SearchPhaseExecutionException;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.ShardSearchFailure;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.client.transport.TransportClient;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.cluster.routing.ShardRouting;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
 import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.hash.MurmurHash3;
 import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.EsThreadPoolExecutor;
+import org.elasticsearch.common.xcontent.ToXContent.MapParams;
 import org.elasticsearch.common.xcontent.ToXContent.Params;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.VersionType;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.RangeQueryBuilder;
+import org.elasticsearch.indices.breaker.CircuitBreakerService;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.script.ScriptService;
 import org.elasticsearch.search.SearchHit;
-import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.search.SearchContextMissingException;
 import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.metrics.max.Max;
+import org.elasticsearch.search.aggregations.metrics.min.Min;
+import org.elasticsearch.search.sort.SortOrder;
 import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.BaseTransportResponseHandler;
+import org.elasticsearch.transport.EmptyTransportResponseHandler;
+import org.elasticsearch.transport.TransportChannel;
+import org.elasticsearch.transport.TransportException;
+import org.elasticsearch.transport.TransportRequestHandler;
+import org.elasticsearch.transport.TransportResponse;
+import org.elasticsearch.transport.TransportService;
 
 /**
  * A LifecycleComponent realising all reindexing works
  */
 public class ReindexingService extends AbstractLifecycleComponent<ReindexingService> {
 
+    private static final int MIN_TRANSFORM_BATCH_SIZE = 100;
+
+    private static final int DEFAULT_TRANSPORT_PORT = 9300;
+
+    private static final String SHARD_ACTION = "cluster:admin/reindexing/shard";
+
+    private static final String CANCEL_ACTION = "cluster:admin/reindexing/cancel";
+
+    private static final String NODE_ACTION = "cluster:admin/reindexing/node";
+
+    private static final int DEFAULT_MAX_CONCURRENT_JOBS = 10;
+
+    private static final TimeValue PAUSE_INTERVAL = TimeValue.timeValueMillis(200);
+
+    private static final String BREAKER_LABEL = "<reindexing>";
+
+    private static final TimeValue MAX_SCROLL_KEEP_ALIVE = TimeValue.timeValueHours(1);
+
+    private static final int MAX_RECOVERIES = 3;
+
+    private static final int MAX_COMPLETED_JOBS = 100;
+
     private Client client;
 
-    private Map<String, ReindexingListener> reindexingListenerMap = new ConcurrentHashMap<String, ReindexingService.ReindexingListener>();
+    private ConcurrentMap<String, ReindexingTask> reindexingListenerMap = new ConcurrentHashMap<String, ReindexingService.ReindexingTask>();
+
+    // names of partition and shard workers, which are shown as their jobs
+    private final Set<String> workerNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
     private ThreadPool threadPool;
 
+    private TransportService transportService;
+
+    private ClusterService clusterService;
+
+    private ScriptService scriptService;
+
+    private Map<String, DocumentTransform.Factory> transformFactories = new ConcurrentHashMap<String, DocumentTransform.Factory>();
+
+    // runs per-document transforms in parallel batches
+    private EsThreadPoolExecutor reindexExecutor;
+
+    private int reindexThreads;
+
+    private int maxConcurrentJobs;
+
+    // jobs waiting for a free slot, guarded by itself
+    private final Queue<QueuedJob> jobQueue = new PriorityQueue<>();
+
+    private int runningJobs = 0;
+
+    private final AtomicLong jobSequence = new AtomicLong();
+
+    // locks of dead letter files, which are shared by listeners of a job
+    private final ConcurrentMap<Path, Object> deadLetterLocks = new ConcurrentHashMap<>();
+
+    // jobs started on this node, to wait for their completion
+    private final Map<String, ProgressListener> progressListenerMap = new ConcurrentHashMap<>();
+
+    // results of recently completed jobs, guarded by itself
+    private final Map<String, Map<String, Object>> completedJobs = new LinkedHashMap<String, Map<String, Object>>() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Map<String, Object>> eldest) {
+            return size() > MAX_COMPLETED_JOBS;
+        }
+    };
+
+    // "file", "source_file" and "dead_letter_file" are confined to this directory, or null if not configured
+    private Path fileRoot;
+
+    // records of finished jobs, or null if disabled
+    private ReindexingHistory history;
+
+    // bytes of pages and bulk bodies held by all jobs on this node
+    private final AtomicLong bytesInFlight = new AtomicLong();
+
+    private long maxBytesInFlight;
+
+    private CircuitBreaker breaker;
+
+    // checks progress of running jobs
+    private ThreadPool.Cancellable watchdog;
+
+    // interval to get the progress of shard_local workers on other nodes
+    private TimeValue workerStatsInterval;
+
+    // long-lived clients for transport_hosts
+    private Map<String, TransportClient> transportClientMap = new ConcurrentHashMap<String, TransportClient>();
+
     @Inject
     public ReindexingService(final Settings settings, final Client client,
-                             final ThreadPool threadPool) {
+                             final ThreadPool threadPool, final ScriptService scriptService,
+                             final TransportService transportService, final ClusterService clusterService,
+                             final CircuitBreakerService circuitBreakerService) {
         super(settings);
         this.client = client;
         this.threadPool = threadPool;
+        this.scriptService = scriptService;
+        this.transportService = transportService;
+        this.clusterService = clusterService;
+        this.breaker = circuitBreakerService.getBreaker(CircuitBreaker.REQUEST);
+        reindexThreads = settings.getAsInt("reindexing.thread_pool.size",
+                EsExecutors.boundedNumberOfProcessors(settings));
+        reindexExecutor = EsExecutors.newFixed("reindexing", reindexThreads, -1,
+                EsExecutors.daemonThreadFactory(settings, "reindexing"));
+        maxConcurrentJobs = settings.getAsInt("reindexing.max_concurrent_jobs", DEFAULT_MAX_CONCURRENT_JOBS);
+        workerStatsInterval = settings.getAsTime("reindexing.worker_stats.interval", TimeValue.timeValueSeconds(1));
+        maxBytesInFlight = settings.getAsBytesSize("reindexing.max_bytes_in_flight", new ByteSizeValue(-1)).bytes();
+        final String[] repoPaths = settings.getAsArray("path.repo");
+        final String filePath = settings.get("reindexing.file.path", repoPaths.length > 0 ? repoPaths[0] : null);
+        if (filePath != null) {
+            final Path path = Paths.get(filePath).toAbsolutePath().normalize();
+            // the security manager allows plugins to access only path.repo
+            for (final String repoPath : repoPaths) {
+                if (path.startsWith(Paths.get(repoPath).toAbsolutePath().normalize())) {
+                    fileRoot = path;
+                }
+            }
+            if (fileRoot == null) {
+                logger.warn("reindexing.file.path is not in path.repo: {}", filePath);
+            }
+        }
+        if (settings.getAsBoolean("reindexing.history.enabled", true)) {
+            history = new ReindexingHistory(client, settings.get("reindexing.history.index", ".reindex-history"));
+        }
     }
 
     @Override
@@ -63,35 +258,209 @@ public class ReindexingService extends AbstractLifecycleComponent<ReindexingServ
         if (logger.isDebugEnabled()) {
             logger.debug("Starting ReindexingService");
         }
+        watchdog = threadPool.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                final long now = System.currentTimeMillis();
+                for (final ReindexingTask task : reindexingListenerMap.values()) {
+                    try {
+                        task.check(now);
+                    } catch (final Exception e) {
+                        logger.warn("Failed to check {}.", e, task.getName());
+                    }
+                }
+            }
+        }, settings.getAsTime("reindexing.watchdog.interval", TimeValue.timeValueSeconds(30)), ThreadPool.Names.GENERIC);
+        transportService.registerRequestHandler(SHARD_ACTION, ReindexShardRequest.class, ThreadPool.Names.GENERIC,
+                new TransportRequestHandler<ReindexShardRequest>() {
+                    @Override
+                    public void messageReceived(final ReindexShardRequest request, final TransportChannel channel) {
+                        executeShard(request, channel);
+                    }
+                });
+        transportService.registerRequestHandler(CANCEL_ACTION, ReindexCancelRequest.class, ThreadPool.Names.GENERIC,
+                new TransportRequestHandler<ReindexCancelRequest>() {
+                    @Override
+                    public void messageReceived(final ReindexCancelRequest request, final TransportChannel channel)
+                            throws Exception {
+                        final ReindexingTask task = reindexingListenerMap.remove(request.getName());
+                        if (task != null) {
+                            task.interrupt();
+                        }
+                        channel.sendResponse(TransportResponse.Empty.INSTANCE);
+                    }
+                });
+        transportService.registerRequestHandler(NODE_ACTION, ReindexNodeRequest.class, ThreadPool.Names.SAME,
+                new TransportRequestHandler<ReindexNodeRequest>() {
+                    @Override
+                    public void messageReceived(final ReindexNodeRequest request, final TransportChannel channel)
+                            throws Exception {
+                        channel.sendResponse(new ReindexNodeResponse(getLocalStats(request.getName(), request.isCancel())));
+                    }
+                });
     }
 
     @Override
     protected void doStop() throws ElasticsearchException {
         logger.info("Stopping ReindexingService...");
-        for (ReindexingListener listener : reindexingListenerMap.values()) {
-            listener.interrupt();
+        if (watchdog != null) {
+            watchdog.cancel();
+        }
+        for (ReindexingTask task : reindexingListenerMap.values()) {
+            task.interrupt();
         }
     }
 
     @Override
     protected void doClose() throws ElasticsearchException {
-        // nothing
+        transportService.removeHandler(SHARD_ACTION);
+        transportService.removeHandler(CANCEL_ACTION);
+        transportService.removeHandler(NODE_ACTION);
+        reindexExecutor.shutdownNow();
+        for (final TransportClient transportClient : transportClientMap.values()) {
+            transportClient.close();
+        }
+        transportClientMap.clear();
+    }
+
+    /**
+     * Register a transform which can be used by "transform" parameter.
+     *
+     * @param name    transform name
+     * @param factory is to create the transform for each job
+     */
+    public void registerTransform(final String name, final DocumentTransform.Factory factory) {
+        transformFactories.put(name, factory);
     }
 
     public boolean exists(final String name) {
         return reindexingListenerMap.containsKey(name);
     }
 
+    /**
+     * @param name reindexing name
+     * @return stats of the process, or null if not found
+     */
+    public Map<String, Object> getStats(final String name) {
+        final ReindexingTask task = reindexingListenerMap.get(name);
+        return task != null ? task.getStats().toMap() : null;
+    }
+
     public String[] getNames() {
-        return reindexingListenerMap.keySet().toArray(
-                new String[reindexingListenerMap.size()]);
+        final List<String> names = new ArrayList<>();
+        for (final String name : reindexingListenerMap.keySet()) {
+            if (!workerNames.contains(name)) {
+                names.add(name);
+            }
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    /**
+     * Get stats of reindexing processes on all nodes.
+     *
+     * @param name     reindexing name, or null for all processes
+     * @param listener receives stats by reindexing name
+     */
+    public void getStats(final String name, final ActionListener<Map<String, Map<String, Object>>> listener) {
+        sendToAllNodes(new ReindexNodeRequest(name, false), listener);
+    }
+
+    /**
+     * Stop a reindexing process on any node.
+     *
+     * @param name     reindexing name
+     * @param listener receives stats of the stopped process, or an empty map if not found
+     */
+    public void delete(final String name, final ActionListener<Map<String, Map<String, Object>>> listener) {
+        sendToAllNodes(new ReindexNodeRequest(name, true), listener);
+    }
+
+    private void sendToAllNodes(final ReindexNodeRequest request,
+            final ActionListener<Map<String, Map<String, Object>>> listener) {
+        final DiscoveryNodes nodes = clusterService.state().nodes();
+        final Map<String, Map<String, Object>> stats = new ConcurrentHashMap<>();
+        final AtomicInteger counter = new AtomicInteger(nodes.size());
+        for (final DiscoveryNode node : nodes) {
+            transportService.sendRequest(node, NODE_ACTION, request,
+                    new BaseTransportResponseHandler<ReindexNodeResponse>() {
+                        @Override
+                        public ReindexNodeResponse newInstance() {
+                            return new ReindexNodeResponse();
+                        }
+
+                        @Override
+                        public void handleResponse(final ReindexNodeResponse response) {
+                            stats.putAll(response.getStats());
+                            countDown();
+                        }
+
+                        @Override
+                        public void handleException(final TransportException e) {
+                            // a node without this plugin or a node leaving the cluster
+                            logger.debug("Failed to get reindexing processes on {}.", e, node);
+                            countDown();
+                        }
+
+                        private void countDown() {
+                            if (counter.decrementAndGet() == 0) {
+                                listener.onResponse(stats);
+                            }
+                        }
+
+                        @Override
+                        public String executor() {
+                            return ThreadPool.Names.SAME;
+                        }
+                    });
+        }
+    }
+
+    private Map<String, Map<String, Object>> getLocalStats(final String name, final boolean cancel) {
+        final Map<String, Map<String, Object>> stats = new HashMap<>();
+        for (final Map.Entry<String, ReindexingTask> entry : reindexingListenerMap.entrySet()) {
+            // a worker is returned only by its name, to the coordinating node
+            if (name == null ? workerNames.contains(entry.getKey()) : !name.equals(entry.getKey())) {
+                continue;
+            }
+            final Map<String, Object> map = entry.getValue().getStats().toMap();
+            map.put("node", clusterService.localNode().getId());
+            if (entry.getValue() instanceof QueuedJob) {
+                map.put("state", "queued");
+                map.put("priority", ((QueuedJob) entry.getValue()).priority);
+            } else {
+                map.put("state", "running");
+            }
+            stats.put(entry.getKey(), map);
+            if (cancel && reindexingListenerMap.remove(entry.getKey()) != null) {
+                entry.getValue().interrupt();
+            }
+        }
+        if (name != null && !cancel && stats.isEmpty()) {
+            // the final stats of a job started on this node
+            final Map<String, Object> result;
+            synchronized (completedJobs) {
+                result = completedJobs.get(name);
+            }
+            if (result != null) {
+                @SuppressWarnings("unchecked")
+                final Map<String, Object> map = new LinkedHashMap<>((Map<String, Object>) result.get("stats"));
+                map.put("node", clusterService.localNode().getId());
+                map.put("state", result.get("state"));
+                if (result.containsKey("error")) {
+                    map.put("error", result.get("error"));
+                }
+                stats.put(name, map);
+            }
+        }
+        return stats;
     }
 
     public void delete(final String name) {
-        final ReindexingListener reindexingListener = reindexingListenerMap
+        final ReindexingTask task = reindexingListenerMap
                 .remove(name);
-        if (reindexingListener != null) {
-            reindexingListener.interrupt();
+        if (task != null) {
+            task.interrupt();
         } else {
             throw new ReindexingException("Reindexing process " + name
                     + " is not found.");
@@ -101,209 +470,2355 @@ public class ReindexingService extends AbstractLifecycleComponent<ReindexingServ
     /**
      * Execute the reindexing
      *
-     * @param params   Rest request
+     * @param paramMap parameters of rest request
      * @param content  Content of rest request in {}
      * @param listener is to receive the response back
      * @return
      */
-    public String execute(final Params params, final BytesReference content, final ActionListener<Void> listener) {
+    public String execute(final Map<String, String> paramMap, final BytesReference content, final ActionListener<Void> listener) {
+        // a queued job fails here instead of when it starts
+        validate(new MapParams(paramMap));
+        final String name = UUID.randomUUID().toString();
+        final int priority = Integer.parseInt(paramMap.containsKey("priority") ? paramMap.get("priority") : "0");
+        final ReindexingStats stats = new ReindexingStats();
+        final ProgressListener progressListener = new ProgressListener(name, paramMap, stats, listener);
+        progressListenerMap.put(name, progressListener);
+        synchronized (jobQueue) {
+            if (runningJobs >= maxConcurrentJobs || !jobQueue.isEmpty()) {
+                final QueuedJob job = new QueuedJob(name, priority, paramMap, content, stats, progressListener);
+                reindexingListenerMap.put(name, job);
+                jobQueue.add(job);
+                return name;
+            }
+            runningJobs++;
+        }
+        final JobListener jobListener = new JobListener(progressListener);
+        try {
+            return execute(name, paramMap, content, stats, jobListener);
+        } catch (final RuntimeException e) {
+            jobListener.release();
+            progressListenerMap.remove(name);
+            throw e;
+        }
+    }
+
+    /**
+     * @return a lock for appending to a dead letter file, the same for the same path
+     */
+    private Object deadLetterLock(final Path path) {
+        final Object lock = new Object();
+        final Object current = deadLetterLocks.putIfAbsent(path, lock);
+        return current != null ? current : lock;
+    }
 
+    /**
+     * Check parameters of a reindexing request before the job is queued or started.
+     */
+    private void validate(final Params params) {
         final String url = params.param("url");
+        final String transportHosts = params.param("transport_hosts");
+        final String sourceUrl = params.param("source_url");
+        final String sourceFile = params.param("source_file");
+        final String file = params.param("file");
+        final boolean deletion = params.paramAsBoolean("deletion", false);
+        if (params.param("toindex") == null) {
+            throw new ReindexingException("toindex is blank.");
+        }
+        if (sourceFile == null && params.param("index") == null) {
+            throw new ReindexingException("index is blank.");
+        }
+        Integer.parseInt(params.param("priority", "0"));
+        Integer.parseInt(params.param("size", "1000"));
+        TimeValue.parseTimeValue(params.param("scroll", "1m"), null, "scroll");
+        TimeValue.parseTimeValue(params.param("stall_timeout", "10m"), null, "stall_timeout");
+        if (params.param("sample_ratio") != null) {
+            final double ratio = Double.parseDouble(params.param("sample_ratio"));
+            if (!(ratio > 0 && ratio <= 1)) {
+                throw new ReindexingException("sample_ratio should be greater than 0 and not greater than 1.");
+            }
+        }
+        if (params.paramAsBoolean("create_index", false) && (sourceFile != null || file != null)) {
+            throw new ReindexingException("create_index cannot be used with source_file or file.");
+        }
+        if (params.paramAsBoolean("verify", false) && (sourceFile != null || file != null || deletion)) {
+            throw new ReindexingException("verify cannot be used with source_file, file or deletion.");
+        }
+        if ((sourceUrl != null || sourceFile != null) && deletion) {
+            throw new ReindexingException("deletion is not supported for source_url and source_file.");
+        }
+        if (sourceFile != null) {
+            if (file != null) {
+                throw new ReindexingException("source_file and file cannot be used together.");
+            }
+            resolveFile("source_file", sourceFile);
+        }
+        if (params.paramAsBoolean("shard_local", false) && (sourceUrl != null || file != null || deletion)) {
+            throw new ReindexingException("shard_local cannot be used with source_url, file or deletion.");
+        }
+        if (params.param("partition_field") != null) {
+            if (sourceUrl != null || file != null || deletion) {
+                throw new ReindexingException("partition_field cannot be used with source_url, file or deletion.");
+            }
+            if (Integer.parseInt(params.param("partitions", "1")) < 1) {
+                throw new ReindexingException("partitions should be greater than 0.");
+            }
+        }
+        if (url != null && transportHosts != null) {
+            throw new ReindexingException("url and transport_hosts cannot be used together.");
+        }
+        if (parseFormat(params.param("format")) != null && url == null) {
+            throw new ReindexingException("format is available only with url.");
+        }
+        if (params.param("checkpoint_field") != null && (sourceUrl != null || sourceFile != null)) {
+            throw new ReindexingException("checkpoint_field is available only for the local cluster.");
+        }
+        if (params.paramAsBoolean("group_by_shard", false) && (url != null || transportHosts != null || file != null)) {
+            throw new ReindexingException("group_by_shard is available only for the local cluster.");
+        }
+        if (params.param("version_type") != null) {
+            final VersionType versionType = VersionType.fromString(params.param("version_type"));
+            if (versionType != VersionType.EXTERNAL && versionType != VersionType.EXTERNAL_GTE) {
+                throw new ReindexingException("version_type must be external or external_gte.");
+            }
+            if (!params.paramAsBoolean("metadata", false)) {
+                throw new ReindexingException("version_type requires metadata=true.");
+            }
+        }
+        final String opType = params.param("op_type", "index");
+        if (!"index".equals(opType) && !"create".equals(opType)) {
+            throw new ReindexingException("Unknown op_type: " + opType);
+        }
+        final String onFailure = params.param("on_failure", "abort");
+        if ("dead_letter".equals(onFailure)) {
+            // failed items of a remote bulk fail the job, since they are not BulkItemResponse
+            if (url != null || file != null) {
+                throw new ReindexingException("on_failure=dead_letter cannot be used with url or file.");
+            }
+            if (params.param("dead_letter_file") != null) {
+                resolveFile("dead_letter_file", params.param("dead_letter_file"));
+            }
+        } else if (!"abort".equals(onFailure)) {
+            throw new ReindexingException("Unknown on_failure: " + onFailure);
+        }
+        if (params.paramAsBoolean("skip_unchanged", false) && (url != null || file != null)) {
+            throw new ReindexingException("skip_unchanged cannot be used with url or file.");
+        }
+        if (params.param("hash_partitions") != null) {
+            final int partitions = Integer.parseInt(params.param("verify_partitions", "16"));
+            for (final String value : Strings.splitStringByCommaToArray(params.param("hash_partitions"))) {
+                final int partition = Integer.parseInt(value.trim());
+                if (partition < 0 || partition >= partitions) {
+                    throw new ReindexingException("hash_partitions should be from 0 to verify_partitions - 1: " + value);
+                }
+            }
+        }
+        if (params.param("max_bytes_per_sec") != null && url == null) {
+            throw new ReindexingException("max_bytes_per_sec is available only with url.");
+        }
+        if (file != null) {
+            if (url != null || transportHosts != null) {
+                throw new ReindexingException("file cannot be used with url or transport_hosts.");
+            }
+            resolveFile("file", file);
+        }
+        TransformChain.parse(params, transformFactories, scriptService);
+    }
+
+    /**
+     * Wait for the completion of a job started on this node.
+     * The listener receives "completed" and stats of the job when it completes,
+     * or the progress so far when the timeout expires.
+     *
+     * @param name     reindexing name
+     * @param timeout  time to wait for the completion
+     * @param listener receives the result or the progress
+     * @return false if the job is not started on this node
+     */
+    public boolean waitForCompletion(final String name, final TimeValue timeout,
+            final ActionListener<Map<String, Object>> listener) {
+        final ProgressListener progressListener = progressListenerMap.get(name);
+        if (progressListener != null) {
+            progressListener.addWaiter(listener, timeout);
+            return true;
+        }
+        final Map<String, Object> result;
+        synchronized (completedJobs) {
+            result = completedJobs.get(name);
+        }
+        if (result == null) {
+            return false;
+        }
+        listener.onResponse(result);
+        return true;
+    }
+
+    /**
+     * Start queued jobs while there are free slots.
+     */
+    private void startQueuedJobs() {
+        final List<QueuedJob> jobs = new ArrayList<>();
+        synchronized (jobQueue) {
+            while (runningJobs < maxConcurrentJobs) {
+                final QueuedJob job = jobQueue.poll();
+                if (job == null) {
+                    break;
+                }
+                // a job removed from the map has been cancelled
+                if (reindexingListenerMap.remove(job.getName(), job)) {
+                    runningJobs++;
+                    jobs.add(job);
+                }
+            }
+        }
+        for (final QueuedJob job : jobs) {
+            final JobListener jobListener = new JobListener(job.listener);
+            try {
+                execute(job.getName(), job.params, job.content, job.stats, jobListener);
+            } catch (final Exception e) {
+                jobListener.onFailure(e);
+            }
+        }
+    }
+
+    private String execute(final String name, final Map<String, String> paramMap, final BytesReference content,
+            final ReindexingStats stats, final ActionListener<Void> listener) {
+        final Params params = new MapParams(paramMap);
+
+        if (params.param("sample_ratio") != null) {
+            final Map<String, String> jobParams = new HashMap<>(paramMap);
+            jobParams.remove("sample_ratio");
+            jobParams.remove("sample_seed");
+            return execute(name, jobParams, sample(params, content), stats, listener);
+        }
+
+        if (params.paramAsBoolean("create_index", false)) {
+            return executeWithTargetIndex(name, paramMap, content, stats, listener);
+        }
+
+        if (params.paramAsBoolean("verify", false)) {
+            final Map<String, String> jobParams = new HashMap<>(paramMap);
+            jobParams.remove("verify");
+            return execute(name, jobParams, content, stats, new Verifier(name, params, content, stats, listener));
+        }
+
+        final String sourceUrl = params.param("source_url");
+        final String sourceFile = params.param("source_file");
         // set scroll to 1m if there is no
         final String scroll = params.param("scroll", "1m");
         final String fromIndex = params.param("index");
         final String fromType = params.param("type");
-        final String toIndex = params.param("toindex");
-        final String toType = params.param("totype");
-        final String[] fields = params.paramAsBoolean("parent", true) ? new String[]{"_source", "_parent"} : new String[]{"_source"};
+        final String[] sourceIncludes = Strings.splitStringByCommaToArray(params.param("source_includes"));
+        final String[] sourceExcludes = Strings.splitStringByCommaToArray(params.param("source_excludes"));
+        // filtered _source is requested by fetch source context instead of fields
+        final boolean sourceFiltering = sourceIncludes.length > 0 || sourceExcludes.length > 0;
+        final List<String> fieldList = new ArrayList<>();
+        if (!sourceFiltering) {
+            fieldList.add("_source");
+        }
+        if (params.paramAsBoolean("parent", true)) {
+            fieldList.add("_parent");
+        }
+        final boolean metadata = params.paramAsBoolean("metadata", false);
+        if (metadata) {
+            fieldList.add("_routing");
+            fieldList.add("_timestamp");
+            fieldList.add("_ttl");
+        }
+        final String[] fields = fieldList.toArray(new String[fieldList.size()]);
         final boolean deletion = params.paramAsBoolean("deletion", false);
+        final TransformChain transformChain = TransformChain.parse(params, transformFactories, scriptService);
+
+        final int size = Integer.parseInt(params.param("size", "1000"));
+        if (sourceFile != null) {
+            return executeFileImport(name, params, sourceFile, size, transformChain, stats, listener);
+        }
+        if (params.paramAsBoolean("shard_local", false)) {
+            return executeOnShards(name, paramMap, content, stats, listener);
+        }
+        final String partitionField = params.param("partition_field");
+        // a partition has its number in "partition"
+        if (partitionField != null && params.param("partition") == null) {
+            return executePartitions(name, paramMap, content, partitionField, stats, listener);
+        }
 
-        final ReindexingListener reindexingListener = new ReindexingListener(url, fromIndex, fromType, toIndex, toType, scroll, deletion, listener);
+        final RemoteScroll remoteScroll = sourceUrl != null ? new RemoteScroll(sourceUrl.endsWith("/") ? sourceUrl : sourceUrl + "/",
+                fromIndex, fromType, fields, sourceIncludes, sourceExcludes, size, scroll, content, metadata) : null;
 
         // Create search request builder
         final SearchRequestBuilder builder = client.prepareSearch(fromIndex)
-                .setScroll(scroll).addFields(fields);
+                .setScroll(scroll).addFields(fields).setVersion(metadata);
+        if (sourceFiltering) {
+            // filter _source on shards to reduce transferred bytes
+            builder.setFetchSource(sourceIncludes.length > 0 ? sourceIncludes : null,
+                    sourceExcludes.length > 0 ? sourceExcludes : null);
+        }
         if (fromType != null && fromType.trim().length() > 0) {
             builder.setTypes(fromType.split(","));
         }
-        if (content == null || content.length() == 0) {
-            builder.setQuery(QueryBuilders.matchAllQuery()).setSize(
-                    Integer.parseInt(params.param("size", "1000")));
+        if (params.param("preference") != null) {
+            builder.setPreference(params.param("preference"));
+        }
+        if (params.param("checkpoint_field") != null) {
+            // the last indexed value is the checkpoint to restart from
+            builder.addSort(params.param("checkpoint_field"), SortOrder.ASC);
+        }
+        // post_filter of the request is combined with the partition range,
+        // so that the checkpoint range of a recovery does not replace them
+        final List<QueryBuilder> filters = new ArrayList<>();
+        final QueryBuilder partitionFilter = partitionField != null ? partitionFilter(partitionField, params) : null;
+        if (partitionFilter != null) {
+            filters.add(partitionFilter);
+        }
+        BytesReference query = content;
+        if (content != null && content.length() > 0) {
+            final Map<String, Object> body = XContentHelper.convertToMap(content, true).v2();
+            final Object userFilter = body.remove("post_filter");
+            if (userFilter instanceof Map) {
+                try {
+                    @SuppressWarnings("unchecked")
+                    final Map<String, Object> filter = (Map<String, Object>) userFilter;
+                    filters.add(QueryBuilders.wrapperQuery(XContentFactory.jsonBuilder().map(filter).bytes()));
+                    query = XContentFactory.jsonBuilder().map(body).bytes();
+                } catch (final IOException e) {
+                    throw new ReindexingException("Failed to build post_filter.", e);
+                }
+            }
+        }
+        final QueryBuilder postFilter = combineFilters(filters);
+        if (postFilter != null) {
+            builder.setPostFilter(postFilter);
+        }
+        if (query == null || query.length() == 0) {
+            builder.setQuery(QueryBuilders.matchAllQuery()).setSize(size);
         } else {
-            builder.setExtraSource(content);
+            builder.setExtraSource(query);
         }
-        builder.execute(reindexingListener);  // async
+
+        final ReindexingListener reindexingListener = new ReindexingListener(name, params, transformChain, remoteScroll,
+                builder, postFilter, stats, listener);
         reindexingListenerMap.put(reindexingListener.getName(), reindexingListener);
+        reindexingListener.start();
         return reindexingListener.getName();
     }
 
     /**
-     * An implementation of ActionListener to action for reindexing
+     * Create the target index, and then start reindexing.
+     * "create_index" in the request body overrides settings and mappings of the target index,
+     * and the rest of the body is the search request.
      */
-    private class ReindexingListener implements ActionListener<SearchResponse> {
+    private String executeWithTargetIndex(final String name, final Map<String, String> paramMap,
+            final BytesReference content, final ReindexingStats stats, final ActionListener<Void> listener) {
+        final Params params = new MapParams(paramMap);
+        final Map<String, String> jobParams = new HashMap<>(paramMap);
+        jobParams.remove("create_index");
+        Map<String, Object> overrides = null;
+        BytesReference query = content;
+        if (content != null && content.length() > 0) {
+            final Map<String, Object> body = XContentHelper.convertToMap(content, true).v2();
+            final Object value = body.remove("create_index");
+            if (value instanceof Map) {
+                @SuppressWarnings("unchecked")
+                final Map<String, Object> map = (Map<String, Object>) value;
+                overrides = map;
+            }
+            try {
+                query = body.isEmpty() ? null : XContentFactory.jsonBuilder().map(body).bytes();
+            } catch (final IOException e) {
+                throw new ReindexingException("Failed to parse the request body.", e);
+            }
+        }
 
-        private AtomicBoolean interrupted = new AtomicBoolean(false);
+        final Map<String, Object> indexOverrides = overrides;
+        final BytesReference searchContent = query;
+        // the job is shown and can be stopped while the index is created
+        final CreateIndexTask task = new CreateIndexTask(name, stats);
+        reindexingListenerMap.put(name, task);
+        // accessing other clusters blocks
+        threadPool.generic().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final long startTime = System.currentTimeMillis();
+                    if (new TargetIndexCreator(client).create(params, getTargetClient(params), indexOverrides)) {
+                        logger.info("Created {} for {}.", params.param("toindex"), name);
+                    }
+                    stats.addCreateIndexTime(System.currentTimeMillis() - startTime);
+                    if (task.isInterrupted()) {
+                        throw new ReindexingException("Interrupted.");
+                    }
+                    // the job replaces the task with the same name
+                    execute(name, jobParams, searchContent, stats, listener);
+                } catch (final Exception e) {
+                    reindexingListenerMap.remove(name, task);
+                    listener.onFailure(e);
+                    return;
+                }
+                if (task.isInterrupted()) {
+                    // stopped before the job was registered
+                    final ReindexingTask job = reindexingListenerMap.remove(name);
+                    if (job != null) {
+                        job.interrupt();
+                    }
+                }
+            }
+        });
+        return name;
+    }
 
-        private String url;
+    /**
+     * Estimate the cost of reindexing by sampling the source and the target.
+     *
+     * @param paramMap parameters of the reindexing request
+     * @param content  search request, or null
+     * @param listener listener receiving the estimations
+     */
+    public void plan(final Map<String, String> paramMap, final BytesReference content,
+            final ActionListener<Map<String, Object>> listener) {
+        final Params params = new MapParams(paramMap);
+        final BytesReference query = params.param("sample_ratio") != null ? sample(params, content) : content;
+        // sampling and sending a bulk request block
+        threadPool.generic().execute(new Runnable() {
+            @Override
+            public void run() {
+                final Map<String, Object> result;
+                try {
+                    result = new ReindexingPlanner(client).plan(params, query, getTargetClient(params));
+                } catch (final Exception e) {
+                    listener.onFailure(e);
+                    return;
+                }
+                listener.onResponse(result);
+            }
+        });
+    }
 
-        private String fromIndex;
+    /**
+     * Wrap the query of the search request to select documents by a random score with sample_seed.
+     * Documents are selected on shards, so only the sampled documents are read.
+     *
+     * @return the search request
+     */
+    private static BytesReference sample(final Params params, final BytesReference content) {
+        final double ratio = Double.parseDouble(params.param("sample_ratio"));
+        final long seed = Long.parseLong(params.param("sample_seed", "0"));
+        final Map<String, Object> body = content != null && content.length() > 0
+                ? XContentHelper.convertToMap(content, true).v2() : new LinkedHashMap<String, Object>();
+        if (!body.containsKey("query")) {
+            body.put("query", Collections.singletonMap("match_all", Collections.emptyMap()));
+        }
+        if (!body.containsKey("size")) {
+            body.put("size", Integer.parseInt(params.param("size", "1000")));
+        }
+        final Map<String, Object> functionScore = new LinkedHashMap<>();
+        functionScore.put("query", body.get("query"));
+        functionScore.put("random_score", Collections.singletonMap("seed", seed));
+        functionScore.put("boost_mode", "replace");
+        body.put("query", Collections.singletonMap("function_score", functionScore));
+        // random scores are uniform in [0, 1)
+        body.put("min_score", 1 - ratio);
+        try {
+            return XContentFactory.jsonBuilder().map(body).bytes();
+        } catch (final IOException e) {
+            throw new ReindexingException("Failed to build a query for sample_ratio.", e);
+        }
+    }
 
-        private String fromType;
+    /**
+     * @return client of the target cluster, or null if the target is given by url
+     */
+    private Client getTargetClient(final Params params) {
+        final String transportHosts = params.param("transport_hosts");
+        if (params.param("url") != null) {
+            return null;
+        } else if (transportHosts != null) {
+            return getTransportClient(params.param("transport_cluster_name", "elasticsearch"), transportHosts,
+                    params.paramAsBoolean("transport_sniff", true));
+        }
+        return client;
+    }
 
-        private String toIndex;
+    /**
+     * Resolve a path given by a request in reindexing.file.path, or the first path.repo.
+     * A relative path is resolved against the directory, and a path outside of it is rejected.
+     *
+     * @param param name of the parameter
+     * @param path  value of the parameter
+     * @return the absolute path
+     */
+    private Path resolveFile(final String param, final String path) {
+        if (fileRoot == null) {
+            throw new ReindexingException(param + " needs path.repo, and reindexing.file.path in it.");
+        }
+        for (final Path element : Paths.get(path)) {
+            if ("..".equals(element.toString())) {
+                throw new ReindexingException(param + " cannot contain \"..\": " + path);
+            }
+        }
+        final Path resolved = fileRoot.resolve(path).normalize();
+        if (!resolved.startsWith(fileRoot)) {
+            throw new ReindexingException(param + " is not in " + fileRoot + ": " + path);
+        }
+        return resolved;
+    }
 
-        private String toType;
+    /**
+     * Index documents from files written by "file" parameter.
+     * Segments are read in parallel, up to the size of the reindexing pool.
+     */
+    private String executeFileImport(final String name, final Params params, final String sourceFile, final int size,
+            final TransformChain transformChain, final ReindexingStats stats, final ActionListener<Void> listener) {
+        final List<Path> segments = FileSegmentSource.readManifest(resolveFile("source_file", sourceFile));
+        final ReindexingGroup group = new ReindexingGroup(name, stats, reindexThreads, listener);
+        for (final Path segment : segments) {
+            group.add(new ReindexingListener(UUID.randomUUID().toString(), params, transformChain,
+                    new FileSegmentSource(segment, size), null, null, group.getStats(), group));
+        }
+        reindexingListenerMap.put(group.getName(), group);
+        group.start();
+        return group.getName();
+    }
+
+    /**
+     * Send each shard of the source index to a node which holds a copy of it.
+     * The shard is read from the local copy and indexed from that node,
+     * and this node only collects the results.
+     */
+    private String executeOnShards(final String name, final Map<String, String> paramMap, final BytesReference content,
+            final ReindexingStats stats, final ActionListener<Void> listener) {
+        final ReindexingGroup group = new ReindexingGroup(name, stats, Integer.MAX_VALUE, listener);
+        reindexingListenerMap.put(group.getName(), group);
+        client.admin().cluster().prepareSearchShards(Strings.splitStringByCommaToArray(paramMap.get("index")))
+                .execute(new ActionListener<ClusterSearchShardsResponse>() {
+                    @Override
+                    public void onResponse(final ClusterSearchShardsResponse response) {
+                        final Map<String, DiscoveryNode> nodes = new HashMap<>();
+                        for (final DiscoveryNode node : response.getNodes()) {
+                            nodes.put(node.getId(), node);
+                        }
+                        // spread workers over nodes holding the copies
+                        final Map<String, Integer> assigned = new HashMap<>();
+                        for (final ClusterSearchShardsGroup shardsGroup : response.getGroups()) {
+                            String nodeId = null;
+                            for (final ShardRouting shard : shardsGroup.getShards()) {
+                                if (shard.active() && (nodeId == null
+                                        || count(assigned, shard.currentNodeId()) < count(assigned, nodeId))) {
+                                    nodeId = shard.currentNodeId();
+                                }
+                            }
+                            if (nodeId == null) {
+                                group.onFailure(new ReindexingException("No active copy of [" + shardsGroup.getIndex()
+                                        + "][" + shardsGroup.getShardId() + "]."));
+                                return;
+                            }
+                            assigned.put(nodeId, count(assigned, nodeId) + 1);
+                            final Map<String, String> shardParams = new HashMap<>(paramMap);
+                            shardParams.remove("shard_local");
+                            shardParams.put("index", shardsGroup.getIndex());
+                            shardParams.put("preference", "_shards:" + shardsGroup.getShardId() + ";_local");
+                            group.add(new ShardTask(nodes.get(nodeId), new ReindexShardRequest(UUID.randomUUID().toString(),
+                                    shardParams, content), group));
+                        }
+                        group.start();
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable e) {
+                        group.onFailure(e);
+                    }
+                });
+        return group.getName();
+    }
+
+    /**
+     * Split the range of a numeric or date field into partitions,
+     * and reindex them in parallel.
+     * The range is taken from min and max aggregations on the source.
+     */
+    private String executePartitions(final String name, final Map<String, String> paramMap, final BytesReference content,
+            final String field, final ReindexingStats stats, final ActionListener<Void> listener) {
+        final int partitions = Integer.parseInt(paramMap.containsKey("partitions") ? paramMap.get("partitions") : "1");
+        final ReindexingGroup group = new ReindexingGroup(name, stats, partitions, listener);
+        reindexingListenerMap.put(group.getName(), group);
+        final SearchRequestBuilder builder = client.prepareSearch(Strings.splitStringByCommaToArray(paramMap.get("index")))
+                .setSize(0).addAggregation(AggregationBuilders.min("min").field(field))
+                .addAggregation(AggregationBuilders.max("max").field(field));
+        final String fromType = paramMap.get("type");
+        if (fromType != null && fromType.trim().length() > 0) {
+            builder.setTypes(fromType.split(","));
+        }
+        if (content != null && content.length() > 0) {
+            builder.setExtraSource(content);
+        }
+        builder.execute(new ActionListener<SearchResponse>() {
+            @Override
+            public void onResponse(final SearchResponse response) {
+                final double min = ((Min) response.getAggregations().get("min")).getValue();
+                final double max = ((Max) response.getAggregations().get("max")).getValue();
+                if (Double.isInfinite(min) || Double.isInfinite(max)) {
+                    // no value to split, so all documents are in one partition
+                    final Map<String, String> partitionParams = new HashMap<>(paramMap);
+                    partitionParams.remove("partition_field");
+                    group.add(new PartitionTask(partitionParams, content, group));
+                    group.start();
+                    return;
+                }
+                // dates and integers are split at integer values
+                final boolean integral = Math.rint(min) == min && Math.rint(max) == max;
+                final double width = integral ? max - min + 1 : max - min;
+                final int size = (int) Math.max(Math.min(partitions, integral ? width : partitions), 1);
+                for (int i = 0; i < size; i++) {
+                    final Map<String, String> partitionParams = new HashMap<>(paramMap);
+                    partitionParams.remove("partitions");
+                    partitionParams.put("partition", Integer.toString(i));
+                    // min and max are doubles, which may round large longs,
+                    // so the first and the last partitions are open
+                    if (i > 0) {
+                        partitionParams.put("partition_gte", boundary(min, width, i, size, integral));
+                    }
+                    if (i < size - 1) {
+                        partitionParams.put("partition_lt", boundary(min, width, i + 1, size, integral));
+                    }
+                    if (i == 0) {
+                        partitionParams.put("partition_missing", "true");
+                    }
+                    group.add(new PartitionTask(partitionParams, content, group));
+                }
+                group.start();
+            }
+
+            @Override
+            public void onFailure(final Throwable e) {
+                group.onFailure(e);
+            }
+        });
+        return group.getName();
+    }
+
+    private static String boundary(final double min, final double width, final int i, final int size,
+            final boolean integral) {
+        if (integral) {
+            return Long.toString((long) min + (long) Math.floor(width * i / size));
+        }
+        return Double.toString(min + width * i / size);
+    }
+
+    /**
+     * @return a filter matching all of filters, or null if filters is empty
+     */
+    private static QueryBuilder combineFilters(final List<QueryBuilder> filters) {
+        if (filters.isEmpty()) {
+            return null;
+        }
+        if (filters.size() == 1) {
+            return filters.get(0);
+        }
+        final BoolQueryBuilder bool = QueryBuilders.boolQuery();
+        for (final QueryBuilder filter : filters) {
+            bool.filter(filter);
+        }
+        return bool;
+    }
+
+    /**
+     * @return filter of documents in the range of partition_gte and partition_lt, or null for all documents
+     */
+    private static QueryBuilder partitionFilter(final String field, final Params params) {
+        final String gte = params.param("partition_gte");
+        final String lt = params.param("partition_lt");
+        if (gte == null && lt == null) {
+            // the only partition
+            return params.paramAsBoolean("partition_missing", false) ? null : QueryBuilders.existsQuery(field);
+        }
+        final RangeQueryBuilder range = QueryBuilders.rangeQuery(field);
+        if (gte != null) {
+            range.gte(parseBoundary(gte));
+        }
+        if (lt != null) {
+            range.lt(parseBoundary(lt));
+        }
+        if (!params.paramAsBoolean("partition_missing", false)) {
+            return range;
+        }
+        // documents without the field are copied with the first partition
+        return QueryBuilders.boolQuery().should(range)
+                .should(QueryBuilders.boolQuery().mustNot(QueryBuilders.existsQuery(field)));
+    }
+
+    private static Number parseBoundary(final String value) {
+        // numbers are also accepted as epoch millis by date fields
+        if (value.indexOf('.') >= 0 || value.indexOf('E') >= 0) {
+            return Double.valueOf(value);
+        }
+        return Long.valueOf(value);
+    }
+
+    private static int count(final Map<String, Integer> assigned, final String nodeId) {
+        final Integer value = assigned.get(nodeId);
+        return value == null ? 0 : value;
+    }
+
+    /**
+     * Reindex a shard sent by the coordinating node.
+     */
+    private void executeShard(final ReindexShardRequest request, final TransportChannel channel) {
+        final ReindexingStats stats = new ReindexingStats();
+        final ActionListener<Void> listener = new ActionListener<Void>() {
+            @Override
+            public void onResponse(final Void response) {
+                workerNames.remove(request.getName());
+                try {
+                    channel.sendResponse(new ReindexShardResponse(stats.toMap()));
+                } catch (final IOException e) {
+                    logger.warn("Failed to send a response of {}.", e, request.getName());
+                }
+            }
+
+            @Override
+            public void onFailure(final Throwable e) {
+                workerNames.remove(request.getName());
+                try {
+                    channel.sendResponse(e);
+                } catch (final IOException ex) {
+                    logger.warn("Failed to send a failure of {}.", ex, request.getName());
+                }
+            }
+        };
+        workerNames.add(request.getName());
+        try {
+            execute(request.getName(), request.getParams(), request.getContent(), stats, listener);
+        } catch (final Exception e) {
+            listener.onFailure(e);
+        }
+    }
+
+    /**
+     * Reserve memory for a page and its bulk body.
+     * The bytes are charged to the request circuit breaker.
+     *
+     * @param bytes estimated size
+     * @return false if the node has no room for now
+     */
+    private boolean tryAcquire(final long bytes) {
+        while (true) {
+            final long current = bytesInFlight.get();
+            // a page is always accepted if no other page is held
+            if (maxBytesInFlight > 0 && current > 0 && current + bytes > maxBytesInFlight) {
+                return false;
+            }
+            if (bytesInFlight.compareAndSet(current, current + bytes)) {
+                break;
+            }
+        }
+        try {
+            breaker.addEstimateBytesAndMaybeBreak(bytes, BREAKER_LABEL);
+        } catch (final CircuitBreakingException e) {
+            bytesInFlight.addAndGet(-bytes);
+            return false;
+        }
+        return true;
+    }
+
+    private void release(final long bytes) {
+        breaker.addWithoutBreaking(-bytes);
+        bytesInFlight.addAndGet(-bytes);
+    }
+
+    private static MurmurHash3.Hash128 hash(final BytesReference bytes) {
+        final BytesRef ref = bytes.toBytesRef();
+        return MurmurHash3.hash128(ref.bytes, ref.offset, ref.length, 0, new MurmurHash3.Hash128());
+    }
+
+    private static XContentType parseFormat(final String value) {
+        if (value == null || "json".equalsIgnoreCase(value)) {
+            return null;
+        } else if ("smile".equalsIgnoreCase(value)) {
+            return XContentType.SMILE;
+        } else if ("cbor".equalsIgnoreCase(value)) {
+            // CBOR content may contain 0xFF, which the bulk API uses as the separator
+            throw new ReindexingException("cbor cannot be used for the bulk API.");
+        }
+        throw new ReindexingException("Unknown format: " + value);
+    }
+
+    /**
+     * Get a transport client to a remote cluster.
+     * A client is created once for each cluster and hosts, and reused by later jobs.
+     *
+     * @param clusterName cluster name of the remote cluster
+     * @param hosts       comma-separated host:port list
+     * @param sniff       true if other nodes are added by sniffing
+     * @return a client
+     */
+    private synchronized Client getTransportClient(final String clusterName, final String hosts, final boolean sniff) {
+        final String key = clusterName + "/" + hosts + "/" + sniff;
+        TransportClient transportClient = transportClientMap.get(key);
+        if (transportClient == null) {
+            final Settings.Builder builder = Settings.settingsBuilder()
+                    .put("cluster.name", clusterName)
+                    .put("client.transport.sniff", sniff);
+            final String pathHome = settings.get("path.home");
+            if (pathHome != null) {
+                builder.put("path.home", pathHome);
+            }
+            transportClient = TransportClient.builder().settings(builder).build();
+            try {
+                for (final String host : Strings.splitStringByCommaToArray(hosts)) {
+                    final int pos = host.lastIndexOf(':');
+                    final String hostname = pos == -1 ? host : host.substring(0, pos);
+                    final int port = pos == -1 ? DEFAULT_TRANSPORT_PORT : Integer.parseInt(host.substring(pos + 1));
+                    transportClient.addTransportAddress(new InetSocketTransportAddress(
+                            InetAddress.getByName(hostname.trim()), port));
+                }
+            } catch (final Exception e) {
+                transportClient.close();
+                throw new ReindexingException("Invalid transport_hosts: " + hosts, e);
+            }
+            transportClientMap.put(key, transportClient);
+        }
+        return transportClient;
+    }
+
+    /**
+     * A reindexing process registered by its name
+     */
+    private interface ReindexingTask {
+
+        String getName();
+
+        ReindexingStats getStats();
+
+        void start();
+
+        void interrupt();
+
+        /**
+         * Called by the watchdog periodically.
+         *
+         * @param now current time in milliseconds
+         */
+        void check(long now);
+    }
+
+    /**
+     * Releases the slot of a job when it finishes.
+     */
+    private class JobListener implements ActionListener<Void> {
+
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private final ActionListener<Void> listener;
+
+        JobListener(final ActionListener<Void> listener) {
+            this.listener = listener;
+        }
+
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                synchronized (jobQueue) {
+                    runningJobs--;
+                }
+                startQueuedJobs();
+            }
+        }
+
+        @Override
+        public void onResponse(final Void response) {
+            release();
+            listener.onResponse(response);
+        }
+
+        @Override
+        public void onFailure(final Throwable e) {
+            release();
+            listener.onFailure(e);
+        }
+    }
+
+    /**
+     * Search records of finished jobs.
+     *
+     * @param params   "state", "index", "toindex", "from" and "size"
+     * @param listener receives "total" and "history"
+     */
+    public void getHistory(final Params params, final ActionListener<Map<String, Object>> listener) {
+        if (history == null) {
+            listener.onFailure(new ReindexingException("reindexing.history.enabled is false."));
+            return;
+        }
+        history.search(params, listener);
+    }
+
+    private void writeHistory(final String name, final Map<String, String> paramMap, final Map<String, Object> result) {
+        if (history == null) {
+            return;
+        }
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> stats = (Map<String, Object>) result.get("stats");
+        final long endTime = System.currentTimeMillis();
+        final long startTime = (Long) stats.get("start_time_in_millis");
+        final long took = Math.max(endTime - startTime, 1);
+        final Map<String, Object> record = new LinkedHashMap<>();
+        record.put("name", name);
+        record.put("node", clusterService.localNode().getId());
+        record.put("state", result.get("state"));
+        if (result.containsKey("error")) {
+            record.put("error", result.get("error"));
+        }
+        record.put("params", paramMap);
+        record.put("end_time_in_millis", endTime);
+        record.put("took_in_millis", took);
+        record.put("mb_per_sec", Math.round((Long) stats.get("bytes") * 1000.0 / took / 1024 / 1024 * 100) / 100.0);
+        record.put("recoveries", 0L);
+        record.putAll(stats);
+        record.remove("eta_in_millis");
+        // indexing blocks
+        threadPool.generic().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    history.write(name, record);
+                } catch (final Exception e) {
+                    logger.warn("Failed to write the history of {}.", e, name);
+                }
+            }
+        });
+    }
+
+    /**
+     * Receives the result of a job, and passes it to requests waiting for the completion.
+     * A waiter receives the progress instead if its timeout expires first.
+     */
+    private class ProgressListener implements ActionListener<Void> {
+
+        private final String name;
+
+        private final Map<String, String> params;
+
+        private final ReindexingStats stats;
+
+        private final ActionListener<Void> listener;
+
+        // guarded by itself
+        private final List<ActionListener<Map<String, Object>>> waiters = new ArrayList<>();
+
+        private Map<String, Object> result;
+
+        ProgressListener(final String name, final Map<String, String> params, final ReindexingStats stats,
+                final ActionListener<Void> listener) {
+            this.name = name;
+            this.params = params;
+            this.stats = stats;
+            this.listener = listener;
+        }
+
+        void addWaiter(final ActionListener<Map<String, Object>> waiter, final TimeValue timeout) {
+            synchronized (waiters) {
+                if (result == null) {
+                    waiters.add(waiter);
+                    threadPool.schedule(timeout, ThreadPool.Names.GENERIC, new Runnable() {
+                        @Override
+                        public void run() {
+                            synchronized (waiters) {
+                                if (!waiters.remove(waiter)) {
+                                    return;
+                                }
+                            }
+                            waiter.onResponse(toMap(false, null));
+                        }
+                    });
+                    return;
+                }
+            }
+            waiter.onResponse(result);
+        }
+
+        private Map<String, Object> toMap(final boolean completed, final Throwable error) {
+            final Map<String, Object> map = new LinkedHashMap<>();
+            map.put("name", name);
+            map.put("completed", completed);
+            final ReindexingTask task = reindexingListenerMap.get(name);
+            map.put("state", completed ? error == null ? "done" : "failed"
+                    : task instanceof QueuedJob ? "queued" : "running");
+            if (error != null) {
+                map.put("error", ExceptionsHelper.detailedMessage(error));
+            }
+            map.put("stats", stats.toMap());
+            return map;
+        }
+
+        private void complete(final Throwable error) {
+            final Map<String, Object> map = toMap(true, error);
+            final List<ActionListener<Map<String, Object>>> completedWaiters;
+            synchronized (completedJobs) {
+                completedJobs.put(name, map);
+            }
+            progressListenerMap.remove(name);
+            writeHistory(name, params, map);
+            synchronized (waiters) {
+                result = map;
+                completedWaiters = new ArrayList<>(waiters);
+                waiters.clear();
+            }
+            for (final ActionListener<Map<String, Object>> waiter : completedWaiters) {
+                waiter.onResponse(map);
+            }
+        }
+
+        @Override
+        public void onResponse(final Void response) {
+            complete(null);
+            listener.onResponse(response);
+        }
+
+        @Override
+        public void onFailure(final Throwable e) {
+            complete(e);
+            listener.onFailure(e);
+        }
+    }
+
+    /**
+     * A job waiting for a free slot.
+     * Jobs with a higher priority start first, and jobs with the same priority start in order.
+     */
+    private class QueuedJob implements ReindexingTask, Comparable<QueuedJob> {
+
+        private final String name;
+
+        private final int priority;
+
+        private final long sequence = jobSequence.incrementAndGet();
+
+        private final Map<String, String> params;
+
+        private final BytesReference content;
+
+        private final ActionListener<Void> listener;
+
+        private final ReindexingStats stats;
+
+        QueuedJob(final String name, final int priority, final Map<String, String> params,
+                final BytesReference content, final ReindexingStats stats, final ActionListener<Void> listener) {
+            this.name = name;
+            this.priority = priority;
+            this.params = params;
+            this.content = content;
+            this.stats = stats;
+            this.listener = listener;
+        }
+
+        @Override
+        public int compareTo(final QueuedJob other) {
+            if (priority != other.priority) {
+                return priority > other.priority ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : sequence == other.sequence ? 0 : 1;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public ReindexingStats getStats() {
+            return stats;
+        }
+
+        @Override
+        public void start() {
+            // started by the scheduler
+        }
+
+        @Override
+        public void check(final long now) {
+            // not started
+        }
+
+        @Override
+        public void interrupt() {
+            synchronized (jobQueue) {
+                jobQueue.remove(this);
+            }
+            listener.onFailure(new ReindexingException("Interrupted."));
+        }
+    }
+
+    /**
+     * A job creating its target index, replaced by the job when the index is created.
+     */
+    private static class CreateIndexTask implements ReindexingTask {
+
+        private final String name;
+
+        private final ReindexingStats stats;
+
+        private final AtomicBoolean interrupted = new AtomicBoolean(false);
+
+        CreateIndexTask(final String name, final ReindexingStats stats) {
+            this.name = name;
+            this.stats = stats;
+        }
+
+        boolean isInterrupted() {
+            return interrupted.get();
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public ReindexingStats getStats() {
+            return stats;
+        }
+
+        @Override
+        public void start() {
+            // started by executeWithTargetIndex
+        }
+
+        @Override
+        public void check(final long now) {
+            // creating an index is not checked
+        }
+
+        @Override
+        public void interrupt() {
+            // the job fails when the index is created
+            interrupted.set(true);
+        }
+    }
+
+    /**
+     * Runs reindexing listeners in parallel as one process.
+     * Each listener reports its result to this group.
+     */
+    private class ReindexingGroup implements ReindexingTask, ActionListener<Void> {
+
+        private final String name;
+
+        private final ReindexingStats stats;
+
+        private final List<ReindexingTask> children = new CopyOnWriteArrayList<>();
+
+        private final Queue<ReindexingTask> pending = new ConcurrentLinkedQueue<>();
+
+        private final AtomicInteger remaining = new AtomicInteger();
+
+        private final AtomicBoolean done = new AtomicBoolean(false);
+
+        private final AtomicBoolean interrupted = new AtomicBoolean(false);
+
+        private final int concurrency;
+
+        private final ActionListener<Void> listener;
+
+        ReindexingGroup(final String name, final ReindexingStats stats, final int concurrency,
+                final ActionListener<Void> listener) {
+            this.name = name;
+            this.stats = stats;
+            this.concurrency = concurrency;
+            this.listener = listener;
+        }
+
+        void add(final ReindexingTask child) {
+            children.add(child);
+            pending.add(child);
+            remaining.incrementAndGet();
+        }
+
+        @Override
+        public void start() {
+            if (interrupted.get()) {
+                onFailure(new ReindexingException("Interrupted."));
+                return;
+            }
+            if (children.isEmpty()) {
+                onResponse(null);
+                return;
+            }
+            for (int i = 0; i < concurrency && !pending.isEmpty(); i++) {
+                startNext();
+            }
+        }
+
+        private void startNext() {
+            final ReindexingTask child = pending.poll();
+            if (child != null) {
+                child.start();
+            }
+        }
+
+        @Override
+        public void onResponse(final Void response) {
+            if (remaining.decrementAndGet() <= 0) {
+                if (done.compareAndSet(false, true)) {
+                    reindexingListenerMap.remove(name);
+                    listener.onResponse(null);
+                }
+            } else {
+                startNext();
+            }
+        }
+
+        @Override
+        public void onFailure(final Throwable e) {
+            if (done.compareAndSet(false, true)) {
+                reindexingListenerMap.remove(name);
+                interrupt();
+                listener.onFailure(e);
+            }
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public ReindexingStats getStats() {
+            return stats;
+        }
+
+        @Override
+        public void interrupt() {
+            interrupted.set(true);
+            pending.clear();
+            for (final ReindexingTask child : children) {
+                child.interrupt();
+            }
+        }
+
+        @Override
+        public void check(final long now) {
+            for (final ReindexingTask child : children) {
+                child.check(now);
+            }
+        }
+    }
+
+    /**
+     * Compares the source and the target after a job succeeds.
+     * Both are scanned in parallel into counts and checksums partitioned by _id,
+     * and the job fails with the partitions which differ.
+     */
+    private class Verifier implements ActionListener<Void> {
+
+        private final String name;
+
+        private final Params params;
+
+        private final BytesReference content;
+
+        private final ReindexingStats stats;
+
+        private final ActionListener<Void> listener;
+
+        private final int partitions;
+
+        private long startTime;
+
+        private final int size;
+
+        private final boolean hashSource;
+
+        private final PartitionChecksums source;
+
+        private final PartitionChecksums target;
+
+        private final AtomicInteger remaining = new AtomicInteger(2);
+
+        private final AtomicBoolean failed = new AtomicBoolean(false);
+
+        Verifier(final String name, final Params params, final BytesReference content, final ReindexingStats stats,
+                final ActionListener<Void> listener) {
+            this.name = name;
+            this.params = params;
+            this.content = content;
+            this.stats = stats;
+            this.listener = listener;
+            this.partitions = Integer.parseInt(params.param("verify_partitions", "16"));
+            if (partitions < 1) {
+                throw new ReindexingException("verify_partitions should be greater than 0.");
+            }
+            this.size = Integer.parseInt(params.param("size", "1000"));
+            // transformed documents are compared only by ids
+            this.hashSource = TransformChain.parse(params, transformFactories, scriptService).isEmpty();
+            this.source = new PartitionChecksums(partitions);
+            this.target = new PartitionChecksums(partitions);
+        }
+
+        @Override
+        public void onResponse(final Void response) {
+            startTime = System.currentTimeMillis();
+            // scans block, so they run on the generic thread pool
+            threadPool.generic().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        scanSource();
+                        done();
+                    } catch (final Exception e) {
+                        onFailure(e);
+                    }
+                }
+            });
+            threadPool.generic().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        scanTarget();
+                        done();
+                    } catch (final Exception e) {
+                        onFailure(e);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onFailure(final Throwable e) {
+            if (failed.compareAndSet(false, true)) {
+                listener.onFailure(e);
+            }
+        }
+
+        private void done() {
+            if (remaining.decrementAndGet() > 0 || failed.get()) {
+                return;
+            }
+            stats.addVerifyTime(System.currentTimeMillis() - startTime);
+            final List<Integer> diff = source.diff(target);
+            if (diff.isEmpty()) {
+                logger.info("Verified {}: {} documents in {} partitions.", name, source.getCount(), partitions);
+                listener.onResponse(null);
+            } else {
+                onFailure(new ReindexingException("Verification of " + name + " failed: the source has "
+                        + source.getCount() + " documents and the target has " + target.getCount()
+                        + ", and partitions " + diff + " of " + partitions + " differ. They are copied again by "
+                        + "verify_partitions=" + partitions + "&hash_partitions="
+                        + Strings.collectionToCommaDelimitedString(diff) + "."));
+            }
+        }
+
+        private void scanSource() throws IOException {
+            final String sourceUrl = params.param("source_url");
+            final String[] sourceIncludes = Strings.splitStringByCommaToArray(params.param("source_includes"));
+            final String[] sourceExcludes = Strings.splitStringByCommaToArray(params.param("source_excludes"));
+            if (sourceUrl != null) {
+                scanPages(new RemoteScroll(sourceUrl.endsWith("/") ? sourceUrl : sourceUrl + "/", params.param("index"),
+                        params.param("type"), new String[0], sourceIncludes, sourceExcludes, size, "1m", content, false),
+                        source);
+            } else {
+                scanSearch(client, params.param("index"), params.param("type"), sourceIncludes, sourceExcludes, content,
+                        source);
+            }
+        }
+
+        private void scanTarget() throws IOException {
+            final String url = params.param("url");
+            final String toIndex = params.param("toindex");
+            final String toType = params.param("totype") != null ? params.param("totype") : params.param("type");
+            if (url != null) {
+                final String baseUrl = url.endsWith("/") ? url : url + "/";
+                try (CurlResponse response = Curl.post(baseUrl + toIndex + "/_refresh").execute()) {
+                    if (response.getHttpStatusCode() != 200) {
+                        throw new ReindexingException("Failed to refresh " + toIndex + " on " + url);
+                    }
+                }
+                scanPages(new RemoteScroll(baseUrl, toIndex, toType, new String[0], new String[0], new String[0], size,
+                        "1m", null, false), target);
+                return;
+            }
+            final String transportHosts = params.param("transport_hosts");
+            final Client targetClient = transportHosts == null ? client
+                    : getTransportClient(params.param("transport_cluster_name", "elasticsearch"), transportHosts,
+                            params.paramAsBoolean("transport_sniff", true));
+            targetClient.admin().indices().prepareRefresh(toIndex).execute().actionGet();
+            scanSearch(targetClient, toIndex, toType, new String[0], new String[0], null, target);
+        }
+
+        private void scanSearch(final Client searchClient, final String index, final String type,
+                final String[] includes, final String[] excludes, final BytesReference query,
+                final PartitionChecksums checksums) throws IOException {
+            final SearchRequestBuilder builder = searchClient.prepareSearch(Strings.splitStringByCommaToArray(index))
+                    .setScroll("1m").setSize(size).addSort("_doc", SortOrder.ASC);
+            if (type != null && type.trim().length() > 0) {
+                builder.setTypes(type.split(","));
+            }
+            if (!hashSource) {
+                builder.setFetchSource(false);
+            } else if (includes.length > 0 || excludes.length > 0) {
+                builder.setFetchSource(includes.length > 0 ? includes : null, excludes.length > 0 ? excludes : null);
+            }
+            if (query != null && query.length() > 0) {
+                builder.setExtraSource(query);
+            }
+            SearchResponse response = builder.execute().actionGet();
+            try {
+                while (response.getHits().getHits().length > 0) {
+                    for (final SearchHit hit : response.getHits().getHits()) {
+                        checksums.add(hit.getId(), hashSource ? hit.sourceRef() : null);
+                    }
+                    response = searchClient.prepareSearchScroll(response.getScrollId()).setScroll("1m").execute()
+                            .actionGet();
+                }
+            } finally {
+                searchClient.prepareClearScroll().addScrollId(response.getScrollId()).execute();
+            }
+        }
+
+        private void scanPages(final PageSource pageSource, final PartitionChecksums checksums) throws IOException {
+            PageSource.Page page = pageSource.first();
+            try {
+                while (page.getHits().length > 0) {
+                    for (final SearchHit hit : page.getHits()) {
+                        checksums.add(hit.getId(), hashSource ? hit.sourceRef() : null);
+                    }
+                    page = pageSource.next(page.getScrollId());
+                }
+            } finally {
+                pageSource.clear(page.getScrollId());
+            }
+        }
+    }
+
+    /**
+     * Reindexing of a range of partition_field on this node
+     */
+    private class PartitionTask implements ReindexingTask {
+
+        private final String name = UUID.randomUUID().toString();
+
+        private final Map<String, String> params;
+
+        private final BytesReference content;
+
+        private final ReindexingGroup group;
+
+        PartitionTask(final Map<String, String> params, final BytesReference content, final ReindexingGroup group) {
+            this.params = params;
+            this.content = content;
+            this.group = group;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public ReindexingStats getStats() {
+            return group.getStats();
+        }
+
+        @Override
+        public void start() {
+            workerNames.add(name);
+            try {
+                execute(name, params, content, group.getStats(), new ActionListener<Void>() {
+                    @Override
+                    public void onResponse(final Void response) {
+                        workerNames.remove(name);
+                        group.onResponse(response);
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable e) {
+                        workerNames.remove(name);
+                        group.onFailure(e);
+                    }
+                });
+            } catch (final Exception e) {
+                workerNames.remove(name);
+                group.onFailure(e);
+            }
+        }
+
+        @Override
+        public void interrupt() {
+            final ReindexingTask task = reindexingListenerMap.get(name);
+            if (task != null) {
+                task.interrupt();
+            }
+        }
+
+        @Override
+        public void check(final long now) {
+            // the running listener is checked by the watchdog
+        }
+    }
+
+    /**
+     * Reindexing of a shard on the node which holds it
+     */
+    private class ShardTask implements ReindexingTask {
+
+        private final DiscoveryNode node;
+
+        private final ReindexShardRequest request;
+
+        private final ReindexingGroup group;
+
+        // gets the progress of the worker until it finishes
+        private volatile ThreadPool.Cancellable poller;
+
+        // guarded by this
+        private boolean finished;
+
+        ShardTask(final DiscoveryNode node, final ReindexShardRequest request, final ReindexingGroup group) {
+            this.node = node;
+            this.request = request;
+            this.group = group;
+        }
+
+        @Override
+        public String getName() {
+            return request.getName();
+        }
+
+        @Override
+        public ReindexingStats getStats() {
+            return group.getStats();
+        }
+
+        @Override
+        public void start() {
+            poller = threadPool.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    getWorkerStats();
+                }
+            }, workerStatsInterval, ThreadPool.Names.GENERIC);
+            transportService.sendRequest(node, SHARD_ACTION, request,
+                    new BaseTransportResponseHandler<ReindexShardResponse>() {
+                        @Override
+                        public ReindexShardResponse newInstance() {
+                            return new ReindexShardResponse();
+                        }
+
+                        @Override
+                        public void handleResponse(final ReindexShardResponse response) {
+                            finish(response.getStats());
+                            group.onResponse(null);
+                        }
+
+                        @Override
+                        public void handleException(final TransportException e) {
+                            finish(null);
+                            group.onFailure(e);
+                        }
+
+                        @Override
+                        public String executor() {
+                            return ThreadPool.Names.SAME;
+                        }
+                    });
+        }
+
+        @Override
+        public void interrupt() {
+            transportService.sendRequest(node, CANCEL_ACTION, new ReindexCancelRequest(request.getName()),
+                    EmptyTransportResponseHandler.INSTANCE_SAME);
+        }
+
+        @Override
+        public void check(final long now) {
+            // checked by the watchdog of the node running it
+        }
+
+        private void getWorkerStats() {
+            transportService.sendRequest(node, NODE_ACTION, new ReindexNodeRequest(request.getName(), false),
+                    new BaseTransportResponseHandler<ReindexNodeResponse>() {
+                        @Override
+                        public ReindexNodeResponse newInstance() {
+                            return new ReindexNodeResponse();
+                        }
+
+                        @Override
+                        public void handleResponse(final ReindexNodeResponse response) {
+                            final Map<String, Object> stats = response.getStats().get(request.getName());
+                            if (stats == null) {
+                                return;
+                            }
+                            synchronized (ShardTask.this) {
+                                // a late response must not be added to the final stats
+                                if (!finished) {
+                                    group.getStats().setWorker(request.getName(), stats);
+                                }
+                            }
+                        }
+
+                        @Override
+                        public void handleException(final TransportException e) {
+                            logger.debug("Failed to get the progress of {} on {}.", e, request.getName(), node);
+                        }
+
+                        @Override
+                        public String executor() {
+                            return ThreadPool.Names.SAME;
+                        }
+                    });
+        }
+
+        /**
+         * @param stats final stats of the worker, or null if it failed
+         */
+        private synchronized void finish(final Map<String, Object> stats) {
+            finished = true;
+            poller.cancel();
+            group.getStats().removeWorker(request.getName());
+            if (stats != null) {
+                group.getStats().add(stats);
+            }
+        }
+    }
+
+    /**
+     * An implementation of ActionListener to action for reindexing
+     */
+    private class ReindexingListener implements ActionListener<SearchResponse>, ReindexingTask {
+
+        private AtomicBoolean interrupted = new AtomicBoolean(false);
+
+        private String url;
+
+        private String transportHosts;
+
+        private String transportClusterName;
+
+        private boolean transportSniff;
+
+        // the local node unless transport_hosts is specified
+        private volatile Client targetClient = client;
+
+        // null if the source is a scroll search on the local cluster
+        private PageSource pageSource;
+
+        private SearchRequestBuilder searchBuilder;
+
+        private FileSink fileSink;
+
+        private String fromIndex;
+
+        private String fromType;
+
+        private String toIndex;
+
+        private String toType;
+
+        private String scroll;
+
+        private String name;
+
+        private ActionListener<Void> listener;
+
+        private volatile String scrollId;
+
+        private boolean deletion;
+
+        private TransformChain transformChain;
+
+        private XContentType format;
+
+        private ReindexingStats stats;
+
+        // a bulk body is split by this size, and -1 means a bulk for each page
+        private long maxBytesInFlight;
+
+        private RateLimiter rateLimiter;
+
+        // extended when processing a page takes longer than half of it
+        private volatile TimeValue scrollKeepAlive;
+
+        private volatile long lastProgressTime = System.currentTimeMillis();
+
+        private volatile long lastScrollTime = System.currentTimeMillis();
+
+        // when the current page is received
+        private volatile long pageTime = System.currentTimeMillis();
+
+        private TimeValue stallTimeout;
+
+        // a field to restart the search after a lost scroll
+        private String checkpointField;
+
+        private volatile Object checkpoint;
+
+        // post_filter of the search, kept with the checkpoint range on a recovery
+        private QueryBuilder postFilter;
+
+        // partitions of verify to be copied, or null for all documents
+        private boolean[] hashPartitions;
+
+        private volatile Object pageCheckpoint;
+
+        private int recoveries = 0;
+
+        private boolean totalKnown = false;
+
+        private final AtomicBoolean done = new AtomicBoolean(false);
+
+        private volatile boolean started = false;
+
+        private final AtomicLong heldBytes = new AtomicLong();
+
+        // a bulk for each destination shard
+        private boolean groupByShard;
+
+        // documents with the same source as the target are not indexed
+        private boolean skipUnchanged;
+
+        private boolean metadata;
+
+        // VersionType.EXTERNAL to keep versions of the source, or null
+        private VersionType versionType;
+
+        private boolean create;
+
+        // failed documents are kept in an index or a file instead of aborting
+        private boolean deadLetter;
+
+        private String deadLetterIndex;
+
+        private Path deadLetterFile;
+
+        ReindexingListener(final String name, final Params params, final TransformChain transformChain, final PageSource pageSource,
+                final SearchRequestBuilder searchBuilder, final QueryBuilder postFilter, final ReindexingStats stats,
+                final ActionListener<Void> listener) {
+            this.postFilter = postFilter;
+            final String url = params.param("url");
+            this.toIndex = params.param("toindex");
+            this.url = url != null && !url.endsWith("/") ? url + "/" : url;
+            this.transportHosts = params.param("transport_hosts");
+            this.transportClusterName = params.param("transport_cluster_name", "elasticsearch");
+            this.transportSniff = params.paramAsBoolean("transport_sniff", true);
+            this.format = parseFormat(params.param("format"));
+            this.fromIndex = params.param("index");
+            this.fromType = params.param("type");
+            this.toType = params.param("totype");
+            this.scroll = params.param("scroll", "1m");
+            this.scrollKeepAlive = TimeValue.parseTimeValue(scroll, null, "scroll");
+            this.stallTimeout = TimeValue.parseTimeValue(params.param("stall_timeout", "10m"), null, "stall_timeout");
+            this.checkpointField = params.param("checkpoint_field");
+            this.groupByShard = params.paramAsBoolean("group_by_shard", false);
+            this.metadata = params.paramAsBoolean("metadata", false);
+            final String versionTypeValue = params.param("version_type");
+            if (versionTypeValue != null) {
+                versionType = VersionType.fromString(versionTypeValue);
+            }
+            this.create = "create".equals(params.param("op_type", "index"));
+            if ("dead_letter".equals(params.param("on_failure", "abort"))) {
+                deadLetter = true;
+                deadLetterIndex = params.param("dead_letter_index", toIndex + "-dead-letter");
+                final String file = params.param("dead_letter_file");
+                deadLetterFile = file != null ? resolveFile("dead_letter_file", file) : null;
+            }
+            this.skipUnchanged = params.paramAsBoolean("skip_unchanged", false);
+            if (params.param("hash_partitions") != null) {
+                hashPartitions = new boolean[Integer.parseInt(params.param("verify_partitions", "16"))];
+                for (final String value : Strings.splitStringByCommaToArray(params.param("hash_partitions"))) {
+                    hashPartitions[Integer.parseInt(value.trim())] = true;
+                }
+            }
+            this.maxBytesInFlight = ByteSizeValue.parseBytesSizeValue(params.param("max_bytes_in_flight", "-1"),
+                    "max_bytes_in_flight").bytes();
+            final String maxBytesPerSec = params.param("max_bytes_per_sec");
+            if (maxBytesPerSec != null) {
+                final long bytesPerSec = ByteSizeValue.parseBytesSizeValue(maxBytesPerSec, "max_bytes_per_sec").bytes();
+                rateLimiter = new RateLimiter.SimpleRateLimiter(bytesPerSec / 1024.0 / 1024.0);
+            }
+            this.deletion = params.paramAsBoolean("deletion", false);
+            final String file = params.param("file");
+            if (file != null) {
+                fileSink = new FileSink(resolveFile("file", file),
+                        ByteSizeValue.parseBytesSizeValue(params.param("file_segment_size", "128mb"), "file_segment_size").bytes(),
+                        fromIndex, fromType);
+            }
+            this.pageSource = pageSource;
+            this.searchBuilder = searchBuilder;
+            this.transformChain = transformChain;
+            this.stats = stats;
+            this.listener = listener;
+            this.name = name;
+        }
+
+        /**
+         * Request the first page.
+         */
+        @Override
+        public void start() {
+            started = true;
+            lastProgressTime = System.currentTimeMillis();
+            lastScrollTime = lastProgressTime;
+            if (pageSource == null && transportHosts == null) {
+                searchBuilder.execute(this);  // async
+                return;
+            }
+
+            // connecting to a remote cluster or reading files blocks, so it must not run on a network thread
+            threadPool.generic().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (transportHosts != null) {
+                            targetClient = getTransportClient(transportClusterName, transportHosts, transportSniff);
+                        }
+                        if (pageSource != null) {
+                            onPage(pageSource.first());
+                        } else {
+                            searchBuilder.execute(ReindexingListener.this);
+                        }
+                    } catch (final Exception e) {
+                        onFailure(e);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Action on the response
+         *
+         * @param response
+         */
+        @Override
+        public void onResponse(final SearchResponse response) {
+            if (response.getFailedShards() > 0 && checkpointField != null) {
+                // some shards lost their scroll contexts
+                if (recover(new ReindexingException("Failed shards: " + response.getFailedShards()))) {
+                    return;
+                }
+            }
+            final SearchHits searchHits = response.getHits();
+            if (!totalKnown) {
+                // a search restarted from a checkpoint counts only the rest
+                totalKnown = true;
+                stats.addTotal(searchHits.getTotalHits());
+            }
+            onPage(response.getScrollId(), searchHits.getHits());
+        }
+
+        /**
+         * Search again from the last checkpoint.
+         *
+         * @return false if the job cannot be recovered
+         */
+        private boolean recover(final Throwable cause) {
+            if (checkpointField == null || recoveries >= MAX_RECOVERIES || interrupted.get()) {
+                return false;
+            }
+            recoveries++;
+            stats.addRecovery();
+            logger.warn("Recovering {} from {}={}.", cause, name, checkpointField, checkpoint);
+            if (checkpoint != null) {
+                // documents at the checkpoint are indexed again
+                // documents without the field are sorted last, so they are not read yet
+                final QueryBuilder range = QueryBuilders.boolQuery()
+                        .should(QueryBuilders.rangeQuery(checkpointField).gte(checkpoint))
+                        .should(QueryBuilders.boolQuery().mustNot(QueryBuilders.existsQuery(checkpointField)));
+                searchBuilder.setPostFilter(postFilter != null
+                        ? QueryBuilders.boolQuery().filter(postFilter).filter(range) : range);
+            }
+            lastScrollTime = System.currentTimeMillis();
+            // the new scroll keeps the extended keep-alive
+            searchBuilder.setScroll(scrollKeepAlive).execute(this);
+            return true;
+        }
+
+        private boolean isScrollLost(final Throwable e) {
+            final Throwable cause = ExceptionsHelper.unwrapCause(e);
+            if (cause instanceof SearchContextMissingException) {
+                return true;
+            }
+            if (cause instanceof SearchPhaseExecutionException) {
+                for (final ShardSearchFailure failure : ((SearchPhaseExecutionException) cause).shardFailures()) {
+                    if (ExceptionsHelper.unwrapCause(failure.getCause()) instanceof SearchContextMissingException) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void check(final long now) {
+            if (!started || done.get()) {
+                return;
+            }
+            if (now - lastProgressTime > stallTimeout.millis()) {
+                onFailure(new ReindexingException("No progress in " + stallTimeout + "."));
+            }
+        }
+
+        /**
+         * Action on a page from the page source
+         *
+         * @param page
+         */
+        void onPage(final PageSource.Page page) {
+            onPage(page.getScrollId(), page.getHits());
+        }
+
+        private void onPage(final String pageScrollId, final SearchHit[] pageHits) {
+            releaseHeld();
+            if (interrupted.get()) {
+                if (done.compareAndSet(false, true)) {
+                    listener.onFailure(new ReindexingException("Interrupted."));
+                }
+                return;
+            }
+            lastProgressTime = System.currentTimeMillis();
+            pageTime = lastProgressTime;
+            stats.addSearchTime(lastProgressTime - lastScrollTime);
+            if (checkpointField != null && pageHits.length > 0) {
+                final Object[] sortValues = pageHits[pageHits.length - 1].getSortValues();
+                pageCheckpoint = sortValues != null && sortValues.length > 0 ? sortValues[0] : null;
+            }
+            final SearchHit[] hits = hashPartitions != null ? selectHashPartitions(pageHits) : pageHits;
+
+            long pageBytes = 0;
+            for (final SearchHit hit : hits) {
+                final BytesReference sourceRef = hit.sourceRef();
+                if (sourceRef != null) {
+                    pageBytes += sourceRef.length();
+                }
+            }
+            stats.addBytes(pageBytes);
+
+            if (pageHits.length == 0) { // finished
+                scrollId = null;
+                if (fileSink != null) {
+                    try {
+                        fileSink.close();
+                    } catch (final IOException e) {
+                        onFailure(e);
+                        return;
+                    }
+                }
+                reindexingListenerMap.remove(name);
+                if (deletion) {
+                    // deleting the source blocks, and this may be a transport thread
+                    threadPool.generic().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                if (fromType == null)
+                                    deleteIndex(fromIndex);
+                                else
+                                    deleteIndexType(fromIndex, fromType);
+                            } catch (final Exception e) {
+                                onFailure(e);
+                                return;
+                            }
+                            if (done.compareAndSet(false, true)) {
+                                listener.onResponse(null);
+                            }
+                        }
+                    });
+                    return;
+                }
+                if (done.compareAndSet(false, true)) {
+                    listener.onResponse(null);
+                }
+            } else if (hits.length == 0) {
+                scrollId = pageScrollId;
+                scroll(scrollId);
+            } else {
+                scrollId = pageScrollId;
+                // the page and a bulk body built from it
+                final long bytes = pageBytes + (maxBytesInFlight > 0 ? Math.min(pageBytes, maxBytesInFlight) : pageBytes);
+                acquire(bytes, System.currentTimeMillis(), new Runnable() {
+                    @Override
+                    public void run() {
+                        transform(hits, new Runnable() {
+                            @Override
+                            public void run() {
+                                if (fileSink != null) {
+                                    threadPool.generic().execute(new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            sendToFile(scrollId, hits);
+                                        }
+                                    });
+                                } else if (skipUnchanged) {
+                                    filterUnchanged(hits, new ActionListener<SearchHit[]>() {
+                                        @Override
+                                        public void onResponse(final SearchHit[] changedHits) {
+                                            if (changedHits.length == 0) {
+                                                scroll(scrollId);
+                                            } else {
+                                                sendBulk(scrollId, changedHits, 0);
+                                            }
+                                        }
+
+                                        @Override
+                                        public void onFailure(final Throwable e) {
+                                            ReindexingListener.this.onFailure(e);
+                                        }
+                                    });
+                                } else {
+                                    sendBulk(scrollId, hits, 0);
+                                }
+                            }
+                        });
+                    }
+                });
+            }
+        }
+
+        /**
+         * Run next when the node has room for the page.
+         * The next scroll request is not sent while waiting.
+         */
+        private void acquire(final long bytes, final long startTime, final Runnable next) {
+            if (interrupted.get()) {
+                if (done.compareAndSet(false, true)) {
+                    listener.onFailure(new ReindexingException("Interrupted."));
+                }
+                return;
+            }
+            if (tryAcquire(bytes)) {
+                heldBytes.addAndGet(bytes);
+                final long pauseTime = System.currentTimeMillis() - startTime;
+                if (pauseTime >= PAUSE_INTERVAL.millis()) {
+                    stats.addPauseTime(pauseTime);
+                }
+                next.run();
+                return;
+            }
+            if (System.currentTimeMillis() - startTime > scrollKeepAlive.millis()) {
+                // the scroll context would be expired
+                onFailure(new ReindexingException("No memory for " + bytes + " bytes in flight within " + scroll + "."));
+                return;
+            }
+            threadPool.schedule(PAUSE_INTERVAL, ThreadPool.Names.GENERIC, new Runnable() {
+                @Override
+                public void run() {
+                    acquire(bytes, startTime, next);
+                }
+            });
+        }
 
-        private String scroll;
+        private void releaseHeld() {
+            final long bytes = heldBytes.getAndSet(0);
+            if (bytes > 0) {
+                release(bytes);
+            }
+        }
 
-        private String name;
+        /**
+         * Get the documents of hits from the target index by a multi-get request,
+         * and pass hits whose source is changed to next.
+         */
+        private void filterUnchanged(final SearchHit[] hits, final ActionListener<SearchHit[]> next) {
+            final MultiGetRequestBuilder request = targetClient.prepareMultiGet();
+            for (final SearchHit hit : hits) {
+                request.add(new MultiGetRequest.Item(toIndex, toType != null ? toType : hit.getType(), hit.getId())
+                        .parent(getParent(hit)).routing(getRouting(hit)));
+            }
+            request.execute(new ActionListener<MultiGetResponse>() {
+                @Override
+                public void onResponse(final MultiGetResponse response) {
+                    final MultiGetItemResponse[] items = response.getResponses();
+                    final List<SearchHit> changedHits = new ArrayList<>(hits.length);
+                    try {
+                        for (int i = 0; i < hits.length; i++) {
+                            // a missing index is reported as a failure
+                            final GetResponse getResponse = items[i].isFailed() ? null : items[i].getResponse();
+                            if (getResponse == null || !getResponse.isExists()
+                                    || !isSameSource(hits[i], getResponse.getSourceAsBytesRef())) {
+                                changedHits.add(hits[i]);
+                            }
+                        }
+                    } catch (final Exception e) {
+                        onFailure(e);
+                        return;
+                    }
+                    stats.addSkipped(hits.length - changedHits.size());
+                    next.onResponse(changedHits.toArray(new SearchHit[changedHits.size()]));
+                }
 
-        private ActionListener<Void> listener;
+                @Override
+                public void onFailure(final Throwable e) {
+                    next.onFailure(e);
+                }
+            });
+        }
 
-        private volatile String scrollId;
+        private boolean isSameSource(final SearchHit hit, final BytesReference target) {
+            if (target == null) {
+                return false;
+            }
+            if (!transformChain.isEmpty()) {
+                return hit.getSource() != null && hit.getSource().equals(XContentHelper.convertToMap(target, false).v2());
+            }
+            final BytesReference source = hit.sourceRef();
+            if (source == null) {
+                return false;
+            }
+            final MurmurHash3.Hash128 sourceHash = hash(source);
+            final MurmurHash3.Hash128 targetHash = hash(target);
+            if (sourceHash.h1 == targetHash.h1 && sourceHash.h2 == targetHash.h2) {
+                return true;
+            }
+            // the same document in a different format or order
+            return XContentHelper.convertToMap(source, false).v2().equals(XContentHelper.convertToMap(target, false).v2());
+        }
 
-        private boolean deletion;
+        /**
+         * Send hits from the given position by bulk requests.
+         * A bulk contains hits up to max_bytes_in_flight.
+         */
+        private void sendBulk(final String scrollId, final SearchHit[] hits, final int from) {
+            int end = hits.length;
+            if (maxBytesInFlight > 0) {
+                long size = 0;
+                end = from;
+                while (end < hits.length && size < maxBytesInFlight) {
+                    final BytesReference sourceRef = hits[end].sourceRef();
+                    size += sourceRef != null ? sourceRef.length() : 0;
+                    end++;
+                }
+            }
+            final SearchHit[] bulkHits = from == 0 && end == hits.length ? hits : Arrays.copyOfRange(hits, from, end);
+            final int nextFrom = end;
+            final Runnable next = new Runnable() {
+                @Override
+                public void run() {
+                    if (nextFrom < hits.length) {
+                        sendBulk(scrollId, hits, nextFrom);
+                    } else {
+                        scroll(scrollId);
+                    }
+                }
+            };
+            if (url != null) {
+                threadPool.generic().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        sendToRemoteCluster(bulkHits, next);
+                    }
+                });
+            } else if (groupByShard) {
+                sendToLocalShards(bulkHits, next);
+            } else {
+                sendToLocalCluster(bulkHits, next);
+            }
+        }
 
-        ReindexingListener(final String url, final String fromIndex, final String fromType, final String toIndex, final String toType, final String scroll, final boolean deletion, final ActionListener<Void> listener) {
-            if (toIndex == null) {
-                throw new ReindexingException("toindex is blank.");
+        /**
+         * Split hits by the destination shard, and send the bulk requests in parallel.
+         * Each bulk request is processed by one shard, but the next page waits for all of them,
+         * so a slow shard still delays the next page.
+         */
+        private void sendToLocalShards(final SearchHit[] hits, final Runnable next) {
+            final ClusterState state = clusterService.state();
+            if (state.metaData().index(toIndex) == null) {
+                // an alias, or the index is created by the first bulk
+                sendToLocalCluster(hits, next);
+                return;
+            }
+            final Map<Integer, List<SearchHit>> shardHits = new HashMap<>();
+            for (final SearchHit hit : hits) {
+                final int shardId = clusterService.operationRouting().shardId(state, toIndex,
+                        toType != null ? toType : hit.getType(), hit.getId(), getRouting(hit)).id();
+                List<SearchHit> list = shardHits.get(shardId);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    shardHits.put(shardId, list);
+                }
+                list.add(hit);
+            }
+            final AtomicInteger remaining = new AtomicInteger(shardHits.size());
+            final AtomicBoolean failed = new AtomicBoolean(false);
+            for (final List<SearchHit> list : shardHits.values()) {
+                sendToLocalCluster(list.toArray(new SearchHit[list.size()]), new Runnable() {
+                    @Override
+                    public void run() {
+                        if (remaining.decrementAndGet() == 0 && !failed.get()) {
+                            next.run();
+                        }
+                    }
+                }, failed);
             }
-            this.url = url != null && !url.endsWith("/") ? url + "/" : url;
-            this.fromIndex = fromIndex;
-            this.fromType = fromType;
-            this.toIndex = toIndex;
-            this.toType = toType;
-            this.scroll = scroll;
-            this.deletion = deletion;
-            this.listener = listener;
-            this.name = UUID.randomUUID().toString();
         }
 
         /**
-         * Action on the response
+         * Apply the transform chain to hits in parallel batches on the reindexing pool.
+         * Parsed sources are modified in place, and next is run after all batches.
          *
-         * @param response
+         * @param hits hits in the current page
+         * @param next is invoked when all hits are transformed
          */
-        @Override
-        public void onResponse(final SearchResponse response) {
-            if (interrupted.get()) {
-                listener.onFailure(new ReindexingException("Interrupted."));
+        private void transform(final SearchHit[] hits, final Runnable next) {
+            if (transformChain.isEmpty()) {
+                next.run();
                 return;
             }
 
-            // Get 10 hit results
-            final SearchHits searchHits = response.getHits();
-            final SearchHit[] hits = searchHits.getHits();
-            if (hits.length == 0) { // finished
-                scrollId = null;
-                reindexingListenerMap.remove(name);
-                if (deletion) {
-                    if (fromType == null)
-                        deleteIndex(fromIndex);
-                    else
-                        deleteIndexType(fromIndex, fromType);
-                }
-                listener.onResponse(null);
-            } else {
-                scrollId = response.getScrollId();
-                if (url != null) {
-                    threadPool.generic().execute(new Runnable() {
-                        @Override
-                        public void run() {
-                            sendToRemoteCluster(scrollId, hits);
+            final int batchSize = Math.max(MIN_TRANSFORM_BATCH_SIZE,
+                    (hits.length + reindexThreads - 1) / reindexThreads);
+            final int numOfBatches = (hits.length + batchSize - 1) / batchSize;
+            final AtomicInteger remaining = new AtomicInteger(numOfBatches);
+            final AtomicBoolean failed = new AtomicBoolean(false);
+            for (int i = 0; i < numOfBatches; i++) {
+                final int start = i * batchSize;
+                final int end = Math.min(start + batchSize, hits.length);
+                reindexExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int j = start; j < end && !failed.get(); j++) {
+                                final Map<String, Object> source = hits[j].getSource();
+                                if (source != null) {
+                                    transformChain.transform(source);
+                                }
+                            }
+                        } catch (final Exception e) {
+                            if (failed.compareAndSet(false, true)) {
+                                onFailure(e);
+                            }
+                            return;
                         }
-                    });
-                } else {
-                    sendToLocalCluster(scrollId, hits);
-                }
+                        if (remaining.decrementAndGet() == 0 && !failed.get()) {
+                            next.run();
+                        }
+                    }
+                });
+            }
+        }
+
+        private String sourceAsString(final SearchHit hit) throws IOException {
+            if (transformChain.isEmpty()) {
+                return hit.getSourceAsString();
             }
+            final Map<String, Object> source = hit.getSource();
+            return source == null ? null : XContentFactory.jsonBuilder().map(source).string();
         }
 
-        private void sendToLocalCluster(final String scrollId, final SearchHit[] hits) {
+        /**
+         * Send hits by a bulk request of the target client, which is
+         * the local node or a transport client to a remote cluster.
+         */
+        private void sendToLocalCluster(final SearchHit[] hits, final Runnable next) {
+            sendToLocalCluster(hits, next, new AtomicBoolean(false));
+        }
+
+        /**
+         * @param failed is set when a bulk request fails, so that a failure is reported once
+         */
+        private void sendToLocalCluster(final SearchHit[] hits, final Runnable next, final AtomicBoolean failed) {
 
             // prepare bulk request
-            final BulkRequestBuilder bulkRequest = client.prepareBulk();
+            final BulkRequestBuilder bulkRequest = targetClient.prepareBulk();
             for (final SearchHit hit : hits) {
-                IndexRequestBuilder builder = client.prepareIndex(toIndex,
-                        toType != null ? toType : hit.getType(), hit.getId())
-                        .setSource(hit.getSource());
-                Map<String, SearchHitField> fields = hit.getFields();
-                if (fields != null && fields.containsKey("_parent")) {
-                    SearchHitField parentField = fields.get("_parent");
-                    if (parentField != null) {
-                        String parentId = parentField.getValue();
-                        builder.setParent(parentId);
+                IndexRequestBuilder builder = targetClient.prepareIndex(toIndex,
+                        toType != null ? toType : hit.getType(), hit.getId());
+                if (transformChain.isEmpty()) {
+                    // pass the raw source through without parsing
+                    builder.setSource(hit.sourceRef());
+                } else {
+                    builder.setSource(hit.getSource());
+                }
+                final String parentId = getParent(hit);
+                if (parentId != null) {
+                    builder.setParent(parentId);
+                }
+                if (metadata) {
+                    final String routing = getFieldValue(hit, "_routing");
+                    if (routing != null) {
+                        builder.setRouting(routing);
+                    }
+                    final Object timestamp = getFieldValue(hit, "_timestamp");
+                    if (timestamp != null) {
+                        builder.setTimestamp(timestamp.toString());
+                    }
+                    final Number ttl = getFieldValue(hit, "_ttl");
+                    if (ttl != null) {
+                        builder.setTTL(ttl.longValue());
                     }
+                    if (versionType != null && hit.getVersion() > 0) {
+                        builder.setVersion(hit.getVersion()).setVersionType(versionType);
+                    }
+                }
+                if (create) {
+                    builder.setCreate(true);
                 }
                 bulkRequest.add(builder);
             }
 
             // send bulk request, if success response got, searching the next 10 results using scroll_id
             // using this listener (inner class) to listen to results
+            final long bulkStartTime = System.nanoTime();
             bulkRequest.execute(new ActionListener<BulkResponse>() {
                 @Override
                 public void onResponse(final BulkResponse bulkResponse) {
+                    stats.addBulkTime(System.nanoTime() - bulkStartTime);
+                    int conflicts = 0;
+                    final List<BulkItemResponse> failedItems = new ArrayList<>();
                     if (bulkResponse.hasFailures()) {
-                        throw new ReindexingException(bulkResponse
-                                .buildFailureMessage());
+                        for (final BulkItemResponse item : bulkResponse.getItems()) {
+                            if (!item.isFailed()) {
+                                continue;
+                            }
+                            // a document already written by a previous run
+                            if ((versionType != null || create) && item.getFailure().getStatus() == RestStatus.CONFLICT) {
+                                conflicts++;
+                            } else if (deadLetter) {
+                                failedItems.add(item);
+                            } else {
+                                throw new ReindexingException(bulkResponse
+                                        .buildFailureMessage());
+                            }
+                        }
+                        stats.addConflicts(conflicts);
+                    }
+                    stats.addDocs(bulkResponse.getItems().length - conflicts - failedItems.size());
+                    if (failedItems.isEmpty()) {
+                        next.run();
+                    } else {
+                        writeDeadLetters(hits, failedItems, next);
                     }
-                    client.prepareSearchScroll(scrollId).setScroll(scroll)
-                            .execute(ReindexingListener.this);
                 }
 
                 @Override
                 public void onFailure(final Throwable e) {
-                    ReindexingListener.this.onFailure(e);
+                    if (failed.compareAndSet(false, true)) {
+                        ReindexingListener.this.onFailure(e);
+                    }
                 }
             });
         }
 
-        private void sendToRemoteCluster(final String scrollId, final SearchHit[] hits) {
+        private void sendToRemoteCluster(final SearchHit[] hits, final Runnable next) {
+            final long bulkStartTime = System.nanoTime();
             try {
                 Curl.post(url + "_bulk").onConnect(new ConnectionBuilder() {
                     @Override
                     public void onConnect(CurlRequest curlRequest,
                                           HttpURLConnection connection) {
                         connection.setDoOutput(true);
+                        if (format != null) {
+                            connection.setRequestProperty("Content-Type", format.restContentType());
+                            try (OutputStream out = new BufferedOutputStream(getOutputStream(connection))) {
+                                writeBinaryBulk(out, hits);
+                            } catch (IOException e) {
+                                ReindexingListener.this.onFailure(e);
+                            }
+                            return;
+                        }
                         try (BufferedWriter writer = new BufferedWriter(
-                                new OutputStreamWriter(connection
-                                        .getOutputStream(), curlRequest
-                                        .encoding()))) {
+                                new OutputStreamWriter(getOutputStream(connection),
+                                        curlRequest.encoding()))) {
                             StringBuilder buf = new StringBuilder(200);
                             for (final SearchHit hit : hits) {
-                                String source = hit.getSourceAsString();
+                                String source = sourceAsString(hit);
                                 if (source != null) {
                                     buf.setLength(0);
-                                    buf.append("{\"index\":{\"_index\":\"");
-                                    buf.append(toIndex);
-                                    buf.append("\",\"_type\":\"");
-                                    if (toType == null) {
-                                        buf.append(hit.getType());
-                                    } else {
-                                        buf.append(toType);
-                                    }
-                                    buf.append("\",\"_id\":\"");
-                                    buf.append(hit.getId());
-                                    buf.append("\"");
-                                    Map<String, SearchHitField> fields = hit
-                                            .getFields();
-                                    if (fields != null
-                                            && fields.containsKey("_parent")) {
-                                        SearchHitField parentField = fields
-                                                .get("_parent");
-                                        if (parentField != null) {
-                                            String parentId = parentField
-                                                    .getValue();
-                                            buf.append(",\"_parent\":\"");
-                                            buf.append(parentId);
-                                            buf.append("\"");
-                                        }
-                                    }
-                                    buf.append("}}");
-                                    writer.write(buf.toString());
-                                    writer.write("\n");
-                                    writer.write(source);
-                                    writer.write("\n");
+                                    appendIndexAction(buf, hit);
+                                    BulkBody.writeLines(writer, buf.toString(), source);
                                 }
                             }
                             writer.flush();
@@ -317,12 +2832,17 @@ public class ReindexingService extends AbstractLifecycleComponent<ReindexingServ
                         try {
                             int responseCode = con.getResponseCode();
                             if (responseCode == 200) {
-                                client.prepareSearchScroll(scrollId)
-                                        .setScroll(scroll)
-                                        .execute(ReindexingListener.this);
+                                final int conflicts;
+                                try (InputStream in = con.getInputStream()) {
+                                    conflicts = readRemoteBulkResponse(in);
+                                }
+                                stats.addBulkTime(System.nanoTime() - bulkStartTime);
+                                stats.addConflicts(conflicts);
+                                stats.addDocs(hits.length - conflicts);
+                                next.run();
                             } else {
                                 throw new ReindexingException(
-                                        "The response code from " + url + " is");
+                                        "The response code from " + url + " is " + responseCode);
                             }
                         } catch (Exception e) {
                             ReindexingListener.this.onFailure(e);
@@ -334,6 +2854,335 @@ public class ReindexingService extends AbstractLifecycleComponent<ReindexingServ
             }
         }
 
+        /**
+         * Check items of a bulk response from a remote cluster.
+         *
+         * @return number of documents rejected as older or existing ones
+         */
+        private int readRemoteBulkResponse(final InputStream in) throws IOException {
+            final BytesStreamOutput out = new BytesStreamOutput();
+            Streams.copy(in, out);
+            final Map<String, Object> response = XContentHelper.convertToMap(out.bytes(), false).v2();
+            if (!Boolean.TRUE.equals(response.get("errors"))) {
+                return 0;
+            }
+            int conflicts = 0;
+            int failures = 0;
+            String reason = null;
+            @SuppressWarnings("unchecked")
+            final List<Map<String, Map<String, Object>>> items = (List<Map<String, Map<String, Object>>>) response
+                    .get("items");
+            for (final Map<String, Map<String, Object>> item : items) {
+                for (final Map<String, Object> result : item.values()) {
+                    final Object error = result.get("error");
+                    if (error == null) {
+                        continue;
+                    }
+                    final Object status = result.get("status");
+                    if ((versionType != null || create) && status instanceof Number
+                            && ((Number) status).intValue() == RestStatus.CONFLICT.getStatus()) {
+                        conflicts++;
+                    } else {
+                        failures++;
+                        if (reason == null) {
+                            reason = "[" + result.get("_id") + "]: " + error;
+                        }
+                    }
+                }
+            }
+            if (failures > 0) {
+                throw new ReindexingException(failures + " of " + items.size() + " documents failed on " + url
+                        + ", for example " + reason);
+            }
+            return conflicts;
+        }
+
+        /**
+         * Write failed documents with the reasons to the dead letter index or file.
+         *
+         * @param hits  hits in the bulk request
+         * @param items failed items, whose item ids are positions in hits
+         */
+        private void writeDeadLetters(final SearchHit[] hits, final List<BulkItemResponse> items, final Runnable next) {
+            final List<XContentBuilder> docs = new ArrayList<>(items.size());
+            try {
+                for (final BulkItemResponse item : items) {
+                    final SearchHit hit = hits[item.getItemId()];
+                    final XContentBuilder doc = XContentFactory.jsonBuilder().startObject()
+                            .field("index", item.getIndex())
+                            .field("type", item.getType())
+                            .field("id", item.getId())
+                            .field("reason", item.getFailureMessage())
+                            .field("status", item.getFailure().getStatus().getStatus())
+                            .field("source", sourceAsString(hit))
+                            .field("timestamp", System.currentTimeMillis())
+                            .endObject();
+                    docs.add(doc);
+                }
+            } catch (final IOException e) {
+                onFailure(e);
+                return;
+            }
+
+            if (deadLetterFile != null) {
+                threadPool.generic().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            synchronized (deadLetterLock(deadLetterFile)) {
+                                try (OutputStream out = Files.newOutputStream(deadLetterFile,
+                                        StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                                    for (final XContentBuilder doc : docs) {
+                                        doc.bytes().writeTo(out);
+                                        out.write('\n');
+                                    }
+                                }
+                            }
+                        } catch (final IOException e) {
+                            onFailure(e);
+                            return;
+                        }
+                        stats.addDeadLetters(docs.size());
+                        next.run();
+                    }
+                });
+                return;
+            }
+
+            // the dead letter index is in the local cluster
+            final BulkRequestBuilder bulkRequest = client.prepareBulk();
+            for (final XContentBuilder doc : docs) {
+                bulkRequest.add(client.prepareIndex(deadLetterIndex, "dead_letter").setSource(doc));
+            }
+            bulkRequest.execute(new ActionListener<BulkResponse>() {
+                @Override
+                public void onResponse(final BulkResponse response) {
+                    if (response.hasFailures()) {
+                        ReindexingListener.this.onFailure(new ReindexingException(response.buildFailureMessage()));
+                        return;
+                    }
+                    stats.addDeadLetters(docs.size());
+                    next.run();
+                }
+
+                @Override
+                public void onFailure(final Throwable e) {
+                    ReindexingListener.this.onFailure(e);
+                }
+            });
+        }
+
+        private OutputStream getOutputStream(final HttpURLConnection connection) throws IOException {
+            if (rateLimiter == null) {
+                return connection.getOutputStream();
+            }
+            return new ThrottledOutputStream(connection.getOutputStream(), rateLimiter);
+        }
+
+        private void appendIndexAction(final StringBuilder buf, final SearchHit hit) {
+            BulkBody.appendAction(buf, create, toIndex, toType != null ? toType : hit.getType(), hit.getId(),
+                    getParent(hit));
+            if (metadata) {
+                final String routing = getFieldValue(hit, "_routing");
+                if (routing != null) {
+                    buf.append(",\"_routing\":");
+                    BulkBody.appendString(buf, routing);
+                }
+                final Object timestamp = getFieldValue(hit, "_timestamp");
+                if (timestamp != null) {
+                    buf.append(",\"_timestamp\":");
+                    BulkBody.appendString(buf, timestamp.toString());
+                }
+                final Number ttl = getFieldValue(hit, "_ttl");
+                if (ttl != null) {
+                    buf.append(",\"_ttl\":").append(ttl.longValue());
+                }
+                // exported files keep versions for a later import with version_type
+                if (hit.getVersion() > 0 && (versionType != null || fileSink != null)) {
+                    buf.append(",\"_version\":").append(hit.getVersion());
+                    if (versionType != null) {
+                        buf.append(",\"_version_type\":\"").append(versionType.name().toLowerCase(Locale.ROOT)).append('"');
+                    }
+                }
+            }
+            buf.append("}}");
+        }
+
+        /**
+         * Write hits to the current segment of the file sink.
+         */
+        private void sendToFile(final String scrollId, final SearchHit[] hits) {
+            try {
+                final StringBuilder buf = new StringBuilder(200);
+                for (final SearchHit hit : hits) {
+                    BytesReference source;
+                    if (transformChain.isEmpty()) {
+                        source = hit.sourceRef();
+                        if (source != null && containsNewLine(source)) {
+                            // a line must hold a whole source
+                            try (XContentParser parser = XContentHelper.createParser(source)) {
+                                source = XContentFactory.jsonBuilder().copyCurrentStructure(parser).bytes();
+                            }
+                        }
+                    } else {
+                        final Map<String, Object> map = hit.getSource();
+                        source = map == null ? null : XContentFactory.jsonBuilder().map(map).bytes();
+                    }
+                    if (source != null) {
+                        buf.setLength(0);
+                        appendIndexAction(buf, hit);
+                        fileSink.add(buf.toString(), source);
+                    }
+                }
+                stats.addDocs(hits.length);
+            } catch (final Exception e) {
+                onFailure(e);
+                return;
+            }
+            scroll(scrollId);
+        }
+
+        private boolean containsNewLine(final BytesReference source) {
+            for (int i = 0; i < source.length(); i++) {
+                if (source.get(i) == '\n') {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Write a bulk body in a binary format. Each action and _source is
+         * followed by the stream separator of the format instead of a new line.
+         */
+        private void writeBinaryBulk(final OutputStream out, final SearchHit[] hits) throws IOException {
+            final byte separator = format.xContent().streamSeparator();
+            for (final SearchHit hit : hits) {
+                final BytesReference sourceRef = hit.sourceRef();
+                if (sourceRef == null) {
+                    continue;
+                }
+                final long startTime = System.nanoTime();
+                final XContentBuilder action = XContentFactory.contentBuilder(format);
+                action.startObject().startObject(create ? "create" : "index")
+                        .field("_index", toIndex)
+                        .field("_type", toType != null ? toType : hit.getType())
+                        .field("_id", hit.getId());
+                final String parentId = getParent(hit);
+                if (parentId != null) {
+                    action.field("_parent", parentId);
+                }
+                if (metadata) {
+                    final String routing = getFieldValue(hit, "_routing");
+                    if (routing != null) {
+                        action.field("_routing", routing);
+                    }
+                    final Object timestamp = getFieldValue(hit, "_timestamp");
+                    if (timestamp != null) {
+                        action.field("_timestamp", timestamp.toString());
+                    }
+                    final Number ttl = getFieldValue(hit, "_ttl");
+                    if (ttl != null) {
+                        action.field("_ttl", ttl.longValue());
+                    }
+                    if (versionType != null && hit.getVersion() > 0) {
+                        action.field("_version", hit.getVersion());
+                        action.field("_version_type", versionType.name().toLowerCase(Locale.ROOT));
+                    }
+                }
+                action.endObject().endObject();
+                final XContentBuilder source = XContentFactory.contentBuilder(format);
+                if (transformChain.isEmpty()) {
+                    // convert _source once without building a map
+                    try (XContentParser parser = XContentHelper.createParser(sourceRef)) {
+                        source.copyCurrentStructure(parser);
+                    }
+                } else {
+                    source.map(hit.getSource());
+                }
+                final BytesReference encoded = source.bytes();
+                stats.addEncoding(System.nanoTime() - startTime, sourceRef.length(), encoded.length());
+
+                action.bytes().writeTo(out);
+                out.write(separator);
+                encoded.writeTo(out);
+                out.write(separator);
+            }
+            out.flush();
+        }
+
+        /**
+         * @return hits in hash_partitions, and others are counted as skipped
+         */
+        private SearchHit[] selectHashPartitions(final SearchHit[] pageHits) {
+            final List<SearchHit> selected = new ArrayList<>(pageHits.length);
+            for (final SearchHit hit : pageHits) {
+                if (hashPartitions[PartitionChecksums.partition(hit.getId(), hashPartitions.length)]) {
+                    selected.add(hit);
+                }
+            }
+            stats.addSkipped(pageHits.length - selected.size());
+            return selected.toArray(new SearchHit[selected.size()]);
+        }
+
+        private String getParent(final SearchHit hit) {
+            return getFieldValue(hit, "_parent");
+        }
+
+        /**
+         * @return routing of the target document, which is _routing with metadata, or the parent
+         */
+        private String getRouting(final SearchHit hit) {
+            if (metadata) {
+                final String routing = getFieldValue(hit, "_routing");
+                if (routing != null) {
+                    return routing;
+                }
+            }
+            return getParent(hit);
+        }
+
+        private <T> T getFieldValue(final SearchHit hit, final String name) {
+            return BulkBody.getFieldValue(hit, name);
+        }
+
+        /**
+         * Request the next page.
+         *
+         * @param scrollId
+         */
+        private void scroll(final String scrollId) {
+            releaseHeld();
+            // all hits of the page are indexed
+            checkpoint = pageCheckpoint;
+            recoveries = 0;
+            lastProgressTime = System.currentTimeMillis();
+            lastScrollTime = lastProgressTime;
+            // the scroll context has to live while the next page is processed,
+            // which is expected to take as long as this page
+            final long processingTime = lastScrollTime - pageTime;
+            if (pageSource == null && processingTime > scrollKeepAlive.millis() / 2
+                    && scrollKeepAlive.millis() < MAX_SCROLL_KEEP_ALIVE.millis()) {
+                scrollKeepAlive = TimeValue.timeValueMillis(Math.min(scrollKeepAlive.millis() * 2,
+                        MAX_SCROLL_KEEP_ALIVE.millis()));
+            }
+            if (pageSource != null) {
+                threadPool.generic().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            onPage(pageSource.next(scrollId));
+                        } catch (final Exception e) {
+                            onFailure(e);
+                        }
+                    }
+                });
+            } else {
+                client.prepareSearchScroll(scrollId).setScroll(scrollKeepAlive)
+                        .execute(this);
+            }
+        }
+
         private void deleteIndex(final String fromIndex) {
             try {
                 // sync
@@ -363,14 +3212,37 @@ public class ReindexingService extends AbstractLifecycleComponent<ReindexingServ
 
         @Override
         public void onFailure(final Throwable e) {
+            if (pageSource == null && isScrollLost(e) && recover(e)) {
+                return;
+            }
+            if (!done.compareAndSet(false, true)) {
+                return;
+            }
             logger.error("Failed to reindex {}.", toIndex, e);
-            delete(name);
+            releaseHeld();
+            final ReindexingTask task = reindexingListenerMap.remove(name);
+            if (task != null) {
+                task.interrupt();
+            }
+            if (fileSink != null) {
+                fileSink.abort();
+            }
             listener.onFailure(e);
         }
 
+        @Override
         public void interrupt() {
             interrupted.set(true);
-            if (scrollId != null) {
+            releaseHeld();
+            if (scrollId != null && pageSource != null) {
+                try {
+                    pageSource.clear(scrollId);
+                } catch (final Exception e) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Failed to stop reindexing for " + toIndex + ".", e);
+                    }
+                }
+            } else if (scrollId != null) {
                 client.prepareClearScroll().addScrollId(scrollId)
                         .execute(new ActionListener<ClearScrollResponse>() {
 
@@ -391,8 +3263,14 @@ public class ReindexingService extends AbstractLifecycleComponent<ReindexingServ
             }
         }
 
+        @Override
         public String getName() {
             return name;
         }
+
+        @Override
+        public ReindexingStats getStats() {
+            return stats;
+        }
     }
 }
@@ -0,0 +1,284 @@
+package org.codelibs.elasticsearch.reindex.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of a reindexing job.
+ */
+public class ReindexingStats {
+
+    // the peak throughput is the highest rate over windows of this length
+    private static final long PEAK_WINDOW_MILLIS = 5000;
+
+    private final long startTime = System.currentTimeMillis();
+
+    private final AtomicLong total = new AtomicLong();
+
+    private final AtomicLong docs = new AtomicLong();
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    private final AtomicLong encodeTime = new AtomicLong();
+
+    private final AtomicLong sourceBytes = new AtomicLong();
+
+    private final AtomicLong encodedBytes = new AtomicLong();
+
+    private final AtomicLong pauseTime = new AtomicLong();
+
+    private final AtomicLong skipped = new AtomicLong();
+
+    private final AtomicLong conflicts = new AtomicLong();
+
+    private final AtomicLong recoveries = new AtomicLong();
+
+    private final AtomicLong deadLetters = new AtomicLong();
+
+    private final AtomicLong searchTime = new AtomicLong();
+
+    private final AtomicLong bulkTime = new AtomicLong();
+
+    private final AtomicLong bulks = new AtomicLong();
+
+    private final AtomicLong createIndexTime = new AtomicLong();
+
+    private final AtomicLong verifyTime = new AtomicLong();
+
+    // latest stats of running workers on other nodes, by worker name
+    private final Map<String, Map<String, Object>> workers = new ConcurrentHashMap<>();
+
+    // guarded by this
+    private long windowStart = startTime;
+
+    private long windowDocs;
+
+    private double peakDocsPerSec;
+
+    /**
+     * @param count number of documents to be read, known from the first page of a search
+     */
+    public void addTotal(final long count) {
+        total.addAndGet(count);
+    }
+
+    /**
+     * @param count number of indexed documents
+     */
+    public void addDocs(final long count) {
+        docs.addAndGet(count);
+        final long now = System.currentTimeMillis();
+        synchronized (this) {
+            windowDocs += count;
+            if (now - windowStart >= PEAK_WINDOW_MILLIS) {
+                peakDocsPerSec = Math.max(peakDocsPerSec, windowDocs * 1000.0 / (now - windowStart));
+                windowStart = now;
+                windowDocs = 0;
+            }
+        }
+    }
+
+    /**
+     * @param size bytes of _source read from the source index
+     */
+    public void addBytes(final long size) {
+        bytes.addAndGet(size);
+    }
+
+    /**
+     * Record a conversion of _source to a binary format.
+     *
+     * @param nanos   elapsed time in nanoseconds
+     * @param from    bytes of JSON _source
+     * @param encoded bytes after the conversion
+     */
+    public void addEncoding(final long nanos, final long from, final long encoded) {
+        encodeTime.addAndGet(nanos);
+        sourceBytes.addAndGet(from);
+        encodedBytes.addAndGet(encoded);
+    }
+
+    /**
+     * @param millis time waiting for the in-flight bytes quota
+     */
+    public void addPauseTime(final long millis) {
+        pauseTime.addAndGet(millis);
+    }
+
+    /**
+     * @param count number of documents which are the same as the target
+     */
+    public void addSkipped(final long count) {
+        skipped.addAndGet(count);
+    }
+
+    /**
+     * @param count number of documents rejected as older or existing ones
+     */
+    public void addConflicts(final long count) {
+        conflicts.addAndGet(count);
+    }
+
+    /**
+     * Record a restart of the search from a checkpoint.
+     */
+    public void addRecovery() {
+        recoveries.incrementAndGet();
+    }
+
+    /**
+     * @param count number of failed documents written to the dead letter index or file
+     */
+    public void addDeadLetters(final long count) {
+        deadLetters.addAndGet(count);
+    }
+
+    /**
+     * @param millis time waiting for pages of the source
+     */
+    public void addSearchTime(final long millis) {
+        searchTime.addAndGet(millis);
+    }
+
+    /**
+     * @param nanos time waiting for the response of a bulk request to the target
+     */
+    public void addBulkTime(final long nanos) {
+        bulks.incrementAndGet();
+        bulkTime.addAndGet(nanos);
+    }
+
+    /**
+     * @param millis time to create the target index
+     */
+    public void addCreateIndexTime(final long millis) {
+        createIndexTime.addAndGet(millis);
+    }
+
+    /**
+     * @param millis time to verify the target
+     */
+    public void addVerifyTime(final long millis) {
+        verifyTime.addAndGet(millis);
+    }
+
+    /**
+     * Add counters of a worker on another node.
+     *
+     * @param map stats of the worker, from {@link #toMap()}
+     */
+    public void add(final Map<String, Object> map) {
+        addTotal(get(map, "total"));
+        addDocs(get(map, "docs"));
+        addBytes(get(map, "bytes"));
+        deadLetters.addAndGet(get(map, "dead_letters"));
+        recoveries.addAndGet(get(map, "recoveries"));
+        conflicts.addAndGet(get(map, "conflicts"));
+        skipped.addAndGet(get(map, "skipped"));
+        pauseTime.addAndGet(get(map, "pause_time_in_millis"));
+        searchTime.addAndGet(get(map, "search_time_in_millis"));
+        bulks.addAndGet(get(map, "bulks"));
+        bulkTime.addAndGet(TimeUnit.MILLISECONDS.toNanos(get(map, "bulk_time_in_millis")));
+        createIndexTime.addAndGet(get(map, "create_index_time_in_millis"));
+        verifyTime.addAndGet(get(map, "verify_time_in_millis"));
+        encodeTime.addAndGet(TimeUnit.MILLISECONDS.toNanos(get(map, "encode_time_in_millis")));
+        encodedBytes.addAndGet(get(map, "encoded_source_bytes"));
+        sourceBytes.addAndGet(get(map, "encoded_source_bytes") + get(map, "saved_bytes"));
+    }
+
+    private static long get(final Map<String, Object> map, final String key) {
+        final Object value = map.get(key);
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    /**
+     * Show the progress of a running worker on another node, until it is removed.
+     *
+     * @param name worker name
+     * @param map  stats of the worker, from {@link #toMap()}
+     */
+    public void setWorker(final String name, final Map<String, Object> map) {
+        workers.put(name, map);
+    }
+
+    public void removeWorker(final String name) {
+        workers.remove(name);
+    }
+
+    // the counter with the progress of running workers
+    private long sum(final long value, final String key) {
+        long sum = value;
+        for (final Map<String, Object> worker : workers.values()) {
+            sum += get(worker, key);
+        }
+        return sum;
+    }
+
+    public long getDocs() {
+        return docs.get();
+    }
+
+    public long getTotal() {
+        return total.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public Map<String, Object> toMap() {
+        final long docs = sum(this.docs.get(), "docs");
+        final long total = sum(this.total.get(), "total");
+        final Map<String, Object> map = new LinkedHashMap<>();
+        map.put("start_time_in_millis", startTime);
+        map.put("docs", docs);
+        map.put("bytes", sum(bytes.get(), "bytes"));
+        final long elapsed = System.currentTimeMillis() - startTime;
+        final double docsPerSec = elapsed > 0 ? docs * 1000.0 / elapsed : 0;
+        map.put("docs_per_sec", Math.round(docsPerSec * 10) / 10.0);
+        final double peak;
+        synchronized (this) {
+            peak = peakDocsPerSec;
+        }
+        // a job shorter than a window has only the mean
+        map.put("peak_docs_per_sec", Math.round(Math.max(peak, docsPerSec) * 10) / 10.0);
+        if (total > 0) {
+            map.put("total", total);
+            if (docsPerSec > 0) {
+                map.put("eta_in_millis", (long) (Math.max(total - docs, 0) * 1000 / docsPerSec));
+            }
+        }
+        putIfPositive(map, "dead_letters", sum(deadLetters.get(), "dead_letters"));
+        putIfPositive(map, "recoveries", sum(recoveries.get(), "recoveries"));
+        putIfPositive(map, "conflicts", sum(conflicts.get(), "conflicts"));
+        putIfPositive(map, "skipped", sum(skipped.get(), "skipped"));
+        putIfPositive(map, "pause_time_in_millis", sum(pauseTime.get(), "pause_time_in_millis"));
+        // times of parallel workers are summed up
+        putIfPositive(map, "search_time_in_millis", sum(searchTime.get(), "search_time_in_millis"));
+        putIfPositive(map, "bulks", sum(bulks.get(), "bulks"));
+        putIfPositive(map, "bulk_time_in_millis",
+                sum(TimeUnit.NANOSECONDS.toMillis(bulkTime.get()), "bulk_time_in_millis"));
+        putIfPositive(map, "create_index_time_in_millis", sum(createIndexTime.get(), "create_index_time_in_millis"));
+        putIfPositive(map, "verify_time_in_millis", sum(verifyTime.get(), "verify_time_in_millis"));
+        final long encodeMillis = sum(TimeUnit.NANOSECONDS.toMillis(encodeTime.get()), "encode_time_in_millis");
+        if (encodeTime.get() > 0 || encodeMillis > 0) {
+            map.put("encode_time_in_millis", encodeMillis);
+            map.put("encoded_source_bytes", sum(encodedBytes.get(), "encoded_source_bytes"));
+            map.put("saved_bytes", sum(sourceBytes.get() - encodedBytes.get(), "saved_bytes"));
+        }
+        return map;
+    }
+
+    private static void putIfPositive(final Map<String, Object> map, final String key, final long value) {
+        if (value > 0) {
+            map.put(key, value);
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package org.codelibs.elasticsearch.reindex.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codelibs.elasticsearch.reindex.exception.ReindexingException;
+import org.codelibs.elasticsearch.runner.net.Curl;
+import org.codelibs.elasticsearch.runner.net.CurlRequest;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.text.Text;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.search.SearchShardTarget;
+import org.elasticsearch.search.internal.InternalSearchHit;
+import org.elasticsearch.search.internal.InternalSearchHitField;
+
+/**
+ * Scrolls an index on a remote cluster over HTTP.
+ * Responses are parsed incrementally from the connection stream,
+ * and each hit keeps its _source as raw bytes.
+ */
+public class RemoteScroll implements PageSource {
+
+    private static final String REMOTE_NODE_ID = "_remote";
+
+    private final String url;
+
+    private final String index;
+
+    private final String type;
+
+    private final String[] fields;
+
+    private final String[] sourceIncludes;
+
+    private final String[] sourceExcludes;
+
+    private final int size;
+
+    private final String scroll;
+
+    private final BytesReference content;
+
+    private final boolean version;
+
+    /**
+     * @param url base url of the remote cluster, ending with "/"
+     */
+    public RemoteScroll(final String url, final String index,
+            final String type, final String[] fields,
+            final String[] sourceIncludes, final String[] sourceExcludes,
+            final int size, final String scroll, final BytesReference content,
+            final boolean version) {
+        this.url = url;
+        this.index = index;
+        this.type = type;
+        this.fields = fields;
+        this.sourceIncludes = sourceIncludes;
+        this.sourceExcludes = sourceExcludes;
+        this.size = size;
+        this.scroll = scroll;
+        this.content = content;
+        this.version = version;
+    }
+
+    /**
+     * Start a scroll search.
+     */
+    @Override
+    public Page first() {
+        final StringBuilder path = new StringBuilder(100);
+        path.append(url).append(index);
+        if (type != null && type.trim().length() > 0) {
+            path.append('/').append(type);
+        }
+        path.append("/_search");
+        final CurlRequest request = Curl.post(path.toString())
+                .param("scroll", scroll).param("size", Integer.toString(size));
+        if (fields.length > 0) {
+            request.param("fields",
+                    Strings.arrayToCommaDelimitedString(fields));
+        }
+        if (version) {
+            request.param("version", "true");
+        }
+        if (sourceIncludes.length > 0) {
+            request.param("_source_include",
+                    Strings.arrayToCommaDelimitedString(sourceIncludes));
+        }
+        if (sourceExcludes.length > 0) {
+            request.param("_source_exclude",
+                    Strings.arrayToCommaDelimitedString(sourceExcludes));
+        }
+        if (content != null && content.length() > 0) {
+            request.body(content.toUtf8());
+        }
+        return execute(request);
+    }
+
+    @Override
+    public Page next(final String scrollId) {
+        return execute(Curl.post(url + "_search/scroll")
+                .param("scroll", scroll).body(scrollId));
+    }
+
+    @Override
+    public void clear(final String scrollId) {
+        Curl.delete(url + "_search/scroll").body(scrollId)
+                .execute(new Curl.ResponseListener() {
+                    @Override
+                    public void onResponse(final HttpURLConnection con) {
+                        // nothing
+                    }
+                });
+    }
+
+    private Page execute(final CurlRequest request) {
+        final Page[] page = new Page[1];
+        request.execute(new Curl.ResponseListener() {
+            @Override
+            public void onResponse(final HttpURLConnection con) {
+                try {
+                    final int responseCode = con.getResponseCode();
+                    if (responseCode != 200) {
+                        throw new ReindexingException("The response code from "
+                                + url + " is " + responseCode);
+                    }
+                    try (InputStream in = con.getInputStream()) {
+                        page[0] = parse(in);
+                    }
+                } catch (final IOException e) {
+                    throw new ReindexingException("Failed to read a response from "
+                            + url, e);
+                }
+            }
+        });
+        return page[0];
+    }
+
+    static Page parse(final InputStream in) throws IOException {
+        String scrollId = null;
+        final List<SearchHit> hits = new ArrayList<>();
+        try (XContentParser parser = JsonXContent.jsonXContent
+                .createParser(in)) {
+            String currentName = null;
+            XContentParser.Token token = parser.nextToken();
+            while ((token = parser.nextToken()) != null
+                    && token != XContentParser.Token.END_OBJECT) {
+                if (token == XContentParser.Token.FIELD_NAME) {
+                    currentName = parser.currentName();
+                } else if ("_scroll_id".equals(currentName)
+                        && token == XContentParser.Token.VALUE_STRING) {
+                    scrollId = parser.text();
+                } else if ("hits".equals(currentName)
+                        && token == XContentParser.Token.START_OBJECT) {
+                    parseHits(parser, hits);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return new Page(scrollId, hits.toArray(new SearchHit[hits.size()]));
+    }
+
+    private static void parseHits(final XContentParser parser,
+            final List<SearchHit> hits) throws IOException {
+        String currentName = null;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentName = parser.currentName();
+            } else if ("hits".equals(currentName)
+                    && token == XContentParser.Token.START_ARRAY) {
+                while (parser.nextToken() != XContentParser.Token.END_ARRAY) {
+                    hits.add(parseHit(parser));
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private static SearchHit parseHit(final XContentParser parser)
+            throws IOException {
+        String index = null;
+        String type = null;
+        String id = null;
+        long version = -1;
+        BytesReference source = null;
+        final Map<String, SearchHitField> fields = new HashMap<>();
+        String currentName = null;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentName = parser.currentName();
+            } else if ("_source".equals(currentName)
+                    && token == XContentParser.Token.START_OBJECT) {
+                source = XContentFactory.jsonBuilder()
+                        .copyCurrentStructure(parser).bytes();
+            } else if ("fields".equals(currentName)
+                    && token == XContentParser.Token.START_OBJECT) {
+                parseFields(parser, fields);
+            } else if (token.isValue()) {
+                if ("_index".equals(currentName)) {
+                    index = parser.text();
+                } else if ("_type".equals(currentName)) {
+                    type = parser.text();
+                } else if ("_id".equals(currentName)) {
+                    id = parser.text();
+                } else if ("_version".equals(currentName)) {
+                    version = parser.longValue();
+                } else if (currentName != null && currentName.startsWith("_")
+                        && !"_score".equals(currentName)) {
+                    // metadata fields such as _parent and _routing
+                    addField(fields, currentName, parser.objectText());
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        final InternalSearchHit hit = new InternalSearchHit(-1, id,
+                new Text(type), fields);
+        hit.shardTarget(new SearchShardTarget(REMOTE_NODE_ID, index, -1));
+        hit.version(version);
+        if (source != null) {
+            hit.sourceRef(source);
+        }
+        return hit;
+    }
+
+    private static void parseFields(final XContentParser parser,
+            final Map<String, SearchHitField> fields) throws IOException {
+        String currentName = null;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentName = parser.currentName();
+            } else if (token == XContentParser.Token.START_ARRAY) {
+                // stored fields are returned as arrays since 1.0
+                while (parser.nextToken() != XContentParser.Token.END_ARRAY) {
+                    addField(fields, currentName, parser.objectText());
+                }
+            } else if (token.isValue()) {
+                addField(fields, currentName, parser.objectText());
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    static void addField(final Map<String, SearchHitField> fields,
+            final String name, final Object value) {
+        final SearchHitField field = fields.get(name);
+        if (field == null) {
+            final List<Object> values = new ArrayList<>(1);
+            values.add(value);
+            fields.put(name, new InternalSearchHitField(name, values));
+        } else {
+            field.values().add(value);
+        }
+    }
+}
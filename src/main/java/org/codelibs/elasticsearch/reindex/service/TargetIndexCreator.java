@@ -0,0 +1,209 @@
+package org.codelibs.elasticsearch.reindex.service;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.codelibs.elasticsearch.reindex.exception.ReindexingException;
+import org.codelibs.elasticsearch.runner.net.Curl;
+import org.codelibs.elasticsearch.runner.net.CurlResponse;
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequestBuilder;
+import org.elasticsearch.action.admin.indices.get.GetIndexRequest;
+import org.elasticsearch.action.admin.indices.get.GetIndexResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.collect.ImmutableOpenMap;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.xcontent.ToXContent.Params;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+
+import com.carrotsearch.hppc.cursors.ObjectObjectCursor;
+
+/**
+ * Creates the target index before reindexing,
+ * with mappings and analysis settings of the source index.
+ * The number of shards is derived from the store size of the source.
+ * Methods block, so they are called on the generic thread pool.
+ */
+public class TargetIndexCreator {
+
+    private static final String ANALYSIS_PREFIX = "index.analysis.";
+
+    private final Client client;
+
+    /**
+     * @param client client of the local cluster
+     */
+    public TargetIndexCreator(final Client client) {
+        this.client = client;
+    }
+
+    /**
+     * @param params       request parameters
+     * @param targetClient client of the target cluster, or null if the target is given by url
+     * @param overrides    "settings" and "mappings" in the request body, or null
+     * @return false if the target index exists
+     */
+    public boolean create(final Params params, final Client targetClient, final Map<String, Object> overrides)
+            throws IOException {
+        final String toIndex = params.param("toindex");
+        if (toIndex == null) {
+            throw new ReindexingException("toindex is blank.");
+        }
+        final String url = baseUrl(params.param("url"));
+        if (url != null ? existsRemote(url + toIndex) : targetClient.admin().indices().prepareExists(toIndex)
+                .execute().actionGet().isExists()) {
+            return false;
+        }
+
+        final String[] indices = Strings.splitStringByCommaToArray(params.param("index"));
+        final String fromType = params.param("type");
+        final Set<String> types = fromType != null && fromType.trim().length() > 0
+                ? new HashSet<>(Arrays.asList(fromType.split(","))) : null;
+        final Settings.Builder sourceSettings = Settings.settingsBuilder();
+        final Map<String, Object> mappings = new LinkedHashMap<>();
+        final String sourceUrl = baseUrl(params.param("source_url"));
+        final long storeBytes;
+        if (sourceUrl != null) {
+            storeBytes = loadRemote(sourceUrl, indices, types, sourceSettings, mappings);
+        } else {
+            storeBytes = loadLocal(indices, types, sourceSettings, mappings);
+        }
+
+        final Settings.Builder settings = Settings.settingsBuilder();
+        for (final Map.Entry<String, String> entry : sourceSettings.build().getAsMap().entrySet()) {
+            if (entry.getKey().startsWith(ANALYSIS_PREFIX)) {
+                settings.put(entry.getKey(), entry.getValue());
+            }
+        }
+        final long targetShardSize = ByteSizeValue.parseBytesSizeValue(params.param("target_shard_size", "30gb"),
+                "target_shard_size").bytes();
+        settings.put("index.number_of_shards", Math.max(1, (storeBytes + targetShardSize - 1) / targetShardSize));
+
+        // all source types are written to totype
+        final String toType = params.param("totype");
+        if (toType != null && !mappings.isEmpty()) {
+            final Object mapping = mappings.values().iterator().next();
+            mappings.clear();
+            mappings.put(toType, mapping);
+        }
+
+        if (overrides != null) {
+            final Object overrideSettings = overrides.get("settings");
+            if (overrideSettings instanceof Map) {
+                settings.put(Settings.settingsBuilder().loadFromSource(toJson(overrideSettings)).normalizePrefix("index.")
+                        .build());
+            }
+            final Object overrideMappings = overrides.get("mappings");
+            if (overrideMappings instanceof Map) {
+                @SuppressWarnings("unchecked")
+                final Map<String, Object> map = (Map<String, Object>) overrideMappings;
+                mappings.putAll(map);
+            }
+        }
+
+        if (url != null) {
+            createRemote(url + toIndex, settings.build(), mappings);
+        } else {
+            final CreateIndexRequestBuilder builder = targetClient.admin().indices().prepareCreate(toIndex)
+                    .setSettings(settings);
+            for (final Map.Entry<String, Object> entry : mappings.entrySet()) {
+                @SuppressWarnings("unchecked")
+                final Map<String, Object> mapping = (Map<String, Object>) entry.getValue();
+                builder.addMapping(entry.getKey(), mapping);
+            }
+            builder.execute().actionGet();
+        }
+        return true;
+    }
+
+    private long loadLocal(final String[] indices, final Set<String> types, final Settings.Builder settings,
+            final Map<String, Object> mappings) throws IOException {
+        final GetIndexResponse response = client.admin().indices().prepareGetIndex().setIndices(indices)
+                .setFeatures(GetIndexRequest.Feature.MAPPINGS, GetIndexRequest.Feature.SETTINGS).execute().actionGet();
+        for (final ObjectObjectCursor<String, Settings> cursor : response.getSettings()) {
+            settings.put(cursor.value);
+        }
+        for (final ObjectObjectCursor<String, ImmutableOpenMap<String, MappingMetaData>> indexCursor : response
+                .getMappings()) {
+            for (final ObjectObjectCursor<String, MappingMetaData> cursor : indexCursor.value) {
+                if (types == null || types.contains(cursor.key)) {
+                    mappings.put(cursor.key, cursor.value.sourceAsMap());
+                }
+            }
+        }
+        return client.admin().indices().prepareStats(indices).clear().setStore(true).execute().actionGet()
+                .getPrimaries().getStore().getSizeInBytes();
+    }
+
+    @SuppressWarnings("unchecked")
+    private long loadRemote(final String url, final String[] indices, final Set<String> types,
+            final Settings.Builder settings, final Map<String, Object> mappings) throws IOException {
+        final String path = url + Strings.arrayToCommaDelimitedString(indices);
+        for (final Object value : getMap(path).values()) {
+            final Map<String, Object> index = (Map<String, Object>) value;
+            if (index.get("settings") instanceof Map) {
+                settings.put(Settings.settingsBuilder().loadFromSource(toJson(index.get("settings"))).build());
+            }
+            if (index.get("mappings") instanceof Map) {
+                for (final Map.Entry<String, Object> entry : ((Map<String, Object>) index.get("mappings")).entrySet()) {
+                    if (types == null || types.contains(entry.getKey())) {
+                        mappings.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+        }
+        final Map<String, Object> all = (Map<String, Object>) getMap(path + "/_stats/store").get("_all");
+        final Map<String, Object> store = (Map<String, Object>) ((Map<String, Object>) all.get("primaries")).get("store");
+        return ((Number) store.get("size_in_bytes")).longValue();
+    }
+
+    private static boolean existsRemote(final String path) {
+        try (CurlResponse response = Curl.get(path + "/_settings").execute()) {
+            return response.getHttpStatusCode() == 200;
+        } catch (final IOException e) {
+            throw new ReindexingException("Failed to access " + path, e);
+        }
+    }
+
+    private static void createRemote(final String path, final Settings settings, final Map<String, Object> mappings)
+            throws IOException {
+        final XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+        builder.startObject("settings");
+        for (final Map.Entry<String, String> entry : settings.getAsMap().entrySet()) {
+            builder.field(entry.getKey(), entry.getValue());
+        }
+        builder.endObject();
+        builder.field("mappings", mappings);
+        builder.endObject();
+        try (CurlResponse response = Curl.put(path).body(builder.string()).execute()) {
+            if (response.getHttpStatusCode() != 200) {
+                throw new ReindexingException("Failed to create " + path + ": " + response.getHttpStatusCode());
+            }
+        }
+    }
+
+    private static Map<String, Object> getMap(final String path) throws IOException {
+        try (CurlResponse response = Curl.get(path).execute()) {
+            if (response.getHttpStatusCode() != 200) {
+                throw new ReindexingException("The response code from " + path + " is " + response.getHttpStatusCode());
+            }
+            return JsonXContent.jsonXContent.createParser(response.getContentAsString()).map();
+        }
+    }
+
+    private static String toJson(final Object map) throws IOException {
+        return XContentFactory.jsonBuilder().value(map).string();
+    }
+
+    private static String baseUrl(final String url) {
+        return url != null && !url.endsWith("/") ? url + "/" : url;
+    }
+}
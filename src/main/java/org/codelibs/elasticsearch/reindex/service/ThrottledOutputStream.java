@@ -0,0 +1,42 @@
+package org.codelibs.elasticsearch.reindex.service;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.lucene.store.RateLimiter;
+
+/**
+ * An output stream which limits the write rate by a rate limiter.
+ */
+public class ThrottledOutputStream extends FilterOutputStream {
+
+    private final RateLimiter rateLimiter;
+
+    private long bytesSincePause = 0;
+
+    public ThrottledOutputStream(final OutputStream out, final RateLimiter rateLimiter) {
+        super(out);
+        this.rateLimiter = rateLimiter;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        out.write(b);
+        count(1);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        out.write(b, off, len);
+        count(len);
+    }
+
+    private void count(final int len) throws IOException {
+        bytesSincePause += len;
+        if (bytesSincePause >= rateLimiter.getMinPauseCheckBytes()) {
+            rateLimiter.pause(bytesSincePause);
+            bytesSincePause = 0;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package org.codelibs.elasticsearch.reindex.transform;
+
+import java.util.Locale;
+import java.util.Map;
+
+import org.codelibs.elasticsearch.reindex.exception.ReindexingException;
+
+/**
+ * Converts a top-level field value to another type.
+ */
+public class CastTransform implements DocumentTransform {
+
+    public enum Type {
+        STRING, INT, LONG, FLOAT, DOUBLE, BOOLEAN;
+
+        public static Type of(final String value) {
+            try {
+                return valueOf(value.trim().toUpperCase(Locale.ROOT));
+            } catch (final IllegalArgumentException e) {
+                throw new ReindexingException("Unknown cast type: " + value);
+            }
+        }
+    }
+
+    private final String field;
+
+    private final Type type;
+
+    public CastTransform(final String field, final Type type) {
+        this.field = field;
+        this.type = type;
+    }
+
+    @Override
+    public void transform(final Map<String, Object> source) {
+        final Object value = source.get(field);
+        if (value != null) {
+            source.put(field, cast(value));
+        }
+    }
+
+    private Object cast(final Object value) {
+        switch (type) {
+        case STRING:
+            return value.toString();
+        case INT:
+            return value instanceof Number ? ((Number) value).intValue()
+                    : Integer.valueOf(value.toString().trim());
+        case LONG:
+            return value instanceof Number ? ((Number) value).longValue()
+                    : Long.valueOf(value.toString().trim());
+        case FLOAT:
+            return value instanceof Number ? ((Number) value).floatValue()
+                    : Float.valueOf(value.toString().trim());
+        case DOUBLE:
+            return value instanceof Number ? ((Number) value).doubleValue()
+                    : Double.valueOf(value.toString().trim());
+        case BOOLEAN:
+            return value instanceof Boolean ? value
+                    : Boolean.valueOf(value.toString().trim());
+        default:
+            return value;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package org.codelibs.elasticsearch.reindex.transform;
+
+import java.util.Map;
+
+import org.elasticsearch.common.xcontent.ToXContent.Params;
+
+/**
+ * A transform applied to a parsed _source before it is indexed.
+ * Implementations are shared by worker threads, so they must be thread-safe.
+ */
+public interface DocumentTransform {
+
+    /**
+     * Modify the source in place.
+     *
+     * @param source parsed _source of a document
+     */
+    void transform(Map<String, Object> source);
+
+    /**
+     * A factory to create a transform from request parameters.
+     */
+    interface Factory {
+
+        /**
+         * @param params Rest request
+         * @return a transform, or null if the request does not use it
+         */
+        DocumentTransform create(Params params);
+    }
+}
@@ -0,0 +1,22 @@
+package org.codelibs.elasticsearch.reindex.transform;
+
+import java.util.Map;
+
+/**
+ * Removes top-level fields.
+ */
+public class DropTransform implements DocumentTransform {
+
+    private final String[] fields;
+
+    public DropTransform(final String... fields) {
+        this.fields = fields;
+    }
+
+    @Override
+    public void transform(final Map<String, Object> source) {
+        for (final String field : fields) {
+            source.remove(field);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package org.codelibs.elasticsearch.reindex.transform;
+
+import java.util.Map;
+
+/**
+ * Renames a top-level field.
+ */
+public class RenameTransform implements DocumentTransform {
+
+    private final String from;
+
+    private final String to;
+
+    public RenameTransform(final String from, final String to) {
+        this.from = from;
+        this.to = to;
+    }
+
+    @Override
+    public void transform(final Map<String, Object> source) {
+        if (source.containsKey(from)) {
+            source.put(to, source.remove(from));
+        }
+    }
+}
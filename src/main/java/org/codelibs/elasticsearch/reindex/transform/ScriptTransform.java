@@ -0,0 +1,46 @@
+package org.codelibs.elasticsearch.reindex.transform;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.elasticsearch.script.CompiledScript;
+import org.elasticsearch.script.ExecutableScript;
+import org.elasticsearch.script.ScriptService;
+
+/**
+ * Runs a script compiled once per job. As with the update API,
+ * the source is available as ctx._source.
+ */
+public class ScriptTransform implements DocumentTransform {
+
+    private final ScriptService scriptService;
+
+    private final CompiledScript compiledScript;
+
+    private final Map<String, Object> params;
+
+    public ScriptTransform(final ScriptService scriptService,
+            final CompiledScript compiledScript,
+            final Map<String, Object> params) {
+        this.scriptService = scriptService;
+        this.compiledScript = compiledScript;
+        this.params = params;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void transform(final Map<String, Object> source) {
+        final Map<String, Object> ctx = new HashMap<>(2);
+        ctx.put("_source", source);
+        // executable scripts and their variables are not thread-safe
+        final ExecutableScript script = scriptService.executable(
+                compiledScript, new HashMap<>(params));
+        script.setNextVar("ctx", ctx);
+        script.run();
+        final Object newSource = ctx.get("_source");
+        if (newSource != source && newSource instanceof Map) {
+            source.clear();
+            source.putAll((Map<String, Object>) newSource);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package org.codelibs.elasticsearch.reindex.transform;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.codelibs.elasticsearch.reindex.exception.ReindexingException;
+import org.elasticsearch.common.ContextAndHeaderHolder;
+import org.elasticsearch.common.HasContextAndHeaders;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.xcontent.ToXContent.Params;
+import org.elasticsearch.script.CompiledScript;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptContext;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.script.ScriptService.ScriptType;
+
+/**
+ * An ordered list of transforms for a reindexing job.
+ * The request parameters are:
+ * <ul>
+ * <li>rename: old1:new1,old2:new2</li>
+ * <li>drop: field1,field2</li>
+ * <li>cast: field1:int,field2:boolean</li>
+ * <li>transform: names of transforms registered to ReindexingService</li>
+ * <li>script, script_lang: an inline script to modify ctx._source</li>
+ * </ul>
+ */
+public class TransformChain {
+
+    public static final TransformChain EMPTY = new TransformChain(
+            Collections.<DocumentTransform> emptyList());
+
+    private final DocumentTransform[] transforms;
+
+    public TransformChain(final List<DocumentTransform> transforms) {
+        this.transforms = transforms.toArray(new DocumentTransform[transforms
+                .size()]);
+    }
+
+    public boolean isEmpty() {
+        return transforms.length == 0;
+    }
+
+    public void transform(final Map<String, Object> source) {
+        for (final DocumentTransform transform : transforms) {
+            transform.transform(source);
+        }
+    }
+
+    /**
+     * Create a chain from request parameters.
+     *
+     * @param params        Rest request
+     * @param factories     registered transform factories
+     * @param scriptService is to compile a script
+     * @return a chain, EMPTY if no transform is specified
+     */
+    public static TransformChain parse(final Params params,
+            final Map<String, DocumentTransform.Factory> factories,
+            final ScriptService scriptService) {
+        final List<DocumentTransform> transforms = new ArrayList<>();
+        for (final String value : Strings.splitStringByCommaToArray(params
+                .param("rename"))) {
+            final String[] pair = splitPair(value, "rename");
+            transforms.add(new RenameTransform(pair[0], pair[1]));
+        }
+        final String[] dropFields = Strings.splitStringByCommaToArray(params
+                .param("drop"));
+        if (dropFields.length > 0) {
+            transforms.add(new DropTransform(dropFields));
+        }
+        for (final String value : Strings.splitStringByCommaToArray(params
+                .param("cast"))) {
+            final String[] pair = splitPair(value, "cast");
+            transforms.add(new CastTransform(pair[0], CastTransform.Type
+                    .of(pair[1])));
+        }
+        for (final String name : Strings.splitStringByCommaToArray(params
+                .param("transform"))) {
+            final DocumentTransform.Factory factory = factories.get(name);
+            if (factory == null) {
+                throw new ReindexingException("Unknown transform: " + name);
+            }
+            final DocumentTransform transform = factory.create(params);
+            if (transform != null) {
+                transforms.add(transform);
+            }
+        }
+        final String script = params.param("script");
+        if (script != null) {
+            final HasContextAndHeaders headers = params instanceof HasContextAndHeaders ? (HasContextAndHeaders) params
+                    : new ContextAndHeaderHolder();
+            final CompiledScript compiledScript = scriptService.compile(
+                    new Script(script, ScriptType.INLINE, params
+                            .param("script_lang"), null),
+                    ScriptContext.Standard.UPDATE, headers,
+                    Collections.<String, String> emptyMap());
+            transforms.add(new ScriptTransform(scriptService, compiledScript,
+                    Collections.<String, Object> emptyMap()));
+        }
+        if (transforms.isEmpty()) {
+            return EMPTY;
+        }
+        return new TransformChain(transforms);
+    }
+
+    private static String[] splitPair(final String value, final String name) {
+        final String[] pair = value.split(":");
+        if (pair.length != 2 || pair[0].trim().isEmpty()
+                || pair[1].trim().isEmpty()) {
+            throw new ReindexingException("Invalid " + name + " parameter: "
+                    + value);
+        }
+        return new String[] { pair[0].trim(), pair[1].trim() };
+    }
+}
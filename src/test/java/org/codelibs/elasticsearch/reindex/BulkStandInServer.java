@@ -0,0 +1,293 @@
+package org.codelibs.elasticsearch.reindex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+
+/**
+ * A stand-in of the _bulk API of a remote cluster for tests and benchmarks.
+ * Documents are not stored, but counted, and latency, bandwidth limits,
+ * error responses and failed items are injected on demand.
+ * Indices do not exist, and a request to create an index is acknowledged.
+ *
+ * <pre>
+ * try (BulkStandInServer server = new BulkStandInServer().start()) {
+ *     server.latency(50).failEvery(10, 429);
+ *     // reindex with url=server.getUrl()
+ * }
+ * </pre>
+ */
+public class BulkStandInServer implements Closeable {
+
+    private HttpServer server;
+
+    private ExecutorService executor;
+
+    private volatile long latency;
+
+    private volatile long bytesPerSec;
+
+    private volatile int failEvery;
+
+    private volatile int failStatus = 429;
+
+    private final LinkedList<Integer> statuses = new LinkedList<>();
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLong docs = new AtomicLong();
+
+    private final AtomicLong failedDocs = new AtomicLong();
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    private final List<String> ids = Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     * Start the server on a free port of localhost.
+     */
+    public BulkStandInServer start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                try {
+                    BulkStandInServer.this.handle(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+        return this;
+    }
+
+    @Override
+    public void close() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+        if (executor != null) {
+            // handlers sleeping for the latency are interrupted
+            executor.shutdownNow();
+            try {
+                executor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            executor = null;
+        }
+    }
+
+    /**
+     * @return url to be given as "url" param, ending with "/"
+     */
+    public String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + "/";
+    }
+
+    /**
+     * @param millis delay before each response
+     */
+    public BulkStandInServer latency(final long millis) {
+        this.latency = millis;
+        return this;
+    }
+
+    /**
+     * @param value maximum bytes per second of reading request bodies, or 0 for no limit
+     */
+    public BulkStandInServer bandwidth(final long value) {
+        this.bytesPerSec = value;
+        return this;
+    }
+
+    /**
+     * Respond to the next requests by the status, such as 429 or 503, without reading documents.
+     */
+    public BulkStandInServer respond(final int status, final int times) {
+        synchronized (statuses) {
+            for (int i = 0; i < times; i++) {
+                statuses.add(status);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Fail every n-th document of a bulk request with the status.
+     *
+     * @param n      interval of failed items, or 0 for no failure
+     * @param status status of failed items
+     */
+    public BulkStandInServer failEvery(final int n, final int status) {
+        this.failEvery = n;
+        this.failStatus = status;
+        return this;
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return number of accepted documents
+     */
+    public long getDocs() {
+        return docs.get();
+    }
+
+    public long getFailedDocs() {
+        return failedDocs.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return ids of accepted documents
+     */
+    public List<String> getIds() {
+        return ids;
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        if ("PUT".equals(exchange.getRequestMethod())) {
+            // creating an index is acknowledged after the latency
+            read(exchange.getRequestBody());
+            sleep(latency);
+            sendResponse(exchange, 200, "{\"acknowledged\":true}");
+            return;
+        }
+        if (!exchange.getRequestURI().getPath().endsWith("/_bulk")) {
+            sendResponse(exchange, 404, "{\"error\":\"not found\",\"status\":404}");
+            return;
+        }
+
+        final byte[] body = read(exchange.getRequestBody());
+        bytes.addAndGet(body.length);
+        sleep(latency);
+
+        final Integer status;
+        synchronized (statuses) {
+            status = statuses.poll();
+        }
+        if (status != null) {
+            sendResponse(exchange, status, "{\"error\":\"injected\",\"status\":" + status + "}");
+            return;
+        }
+
+        final String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        final XContentType xContentType = contentType != null ? XContentType.fromRestContentType(contentType) : null;
+        final byte separator = xContentType != null ? xContentType.xContent().streamSeparator() : (byte) '\n';
+
+        final XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+        builder.field("took", latency);
+        final List<Map<String, Object>> actions = new ArrayList<>();
+        int start = 0;
+        boolean isAction = true;
+        for (int i = 0; i <= body.length; i++) {
+            if (i < body.length && body[i] != separator) {
+                continue;
+            }
+            if (i > start) {
+                if (isAction) {
+                    actions.add(XContentHelper.convertToMap(new BytesArray(body, start, i - start), false).v2());
+                }
+                isAction = !isAction;
+            }
+            start = i + 1;
+        }
+
+        boolean errors = false;
+        builder.startArray("items");
+        for (int i = 0; i < actions.size(); i++) {
+            final Map<String, Object> action = actions.get(i);
+            final String op = action.keySet().iterator().next();
+            @SuppressWarnings("unchecked")
+            final Map<String, Object> meta = (Map<String, Object>) action.get(op);
+            builder.startObject().startObject(op);
+            builder.field("_index", meta.get("_index"));
+            builder.field("_type", meta.get("_type"));
+            builder.field("_id", meta.get("_id"));
+            if (failEvery > 0 && (i + 1) % failEvery == 0) {
+                errors = true;
+                failedDocs.incrementAndGet();
+                builder.field("status", failStatus);
+                builder.startObject("error").field("type", "injected_exception")
+                        .field("reason", "injected failure").endObject();
+            } else {
+                docs.incrementAndGet();
+                ids.add(String.valueOf(meta.get("_id")));
+                builder.field("_version", 1);
+                builder.field("status", 201);
+            }
+            builder.endObject().endObject();
+        }
+        builder.endArray();
+        builder.field("errors", errors);
+        builder.endObject();
+        sendResponse(exchange, 200, builder.string());
+    }
+
+    private byte[] read(final InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buf = new byte[8192];
+        int len;
+        while ((len = in.read(buf)) != -1) {
+            out.write(buf, 0, len);
+            final long limit = bytesPerSec;
+            if (limit > 0) {
+                sleep(len * 1000L / limit);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void sendResponse(final HttpExchange exchange, final int status, final String content)
+            throws IOException {
+        final byte[] bytes = content.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static void sleep(final long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package org.codelibs.elasticsearch.reindex;
+
+import junit.framework.TestCase;
+import org.codelibs.elasticsearch.runner.ElasticsearchClusterRunner;
+import org.codelibs.elasticsearch.runner.net.Curl;
+import org.codelibs.elasticsearch.runner.net.CurlRequest;
+import org.codelibs.elasticsearch.runner.net.CurlResponse;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.settings.Settings.Builder;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.node.Node;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.codelibs.elasticsearch.runner.ElasticsearchClusterRunner.newConfigs;
+
+/**
+ * Throughput of reindexing on an embedded cluster.
+ * This is not run by "mvn test", but by "mvn -Pbenchmark test",
+ * and the data set and runs are given by benchmark.* system properties.
+ */
+public class ReindexingBenchmark extends TestCase {
+
+    private static final String INDEX = "benchmark";
+
+    private static final String NEW_INDEX = "benchmark2";
+
+    private static final String PARENT_TYPE = "parent";
+
+    private static final String TYPE = "item";
+
+    private final int docNumber = Integer.getInteger("benchmark.docs", 10000);
+
+    private final int docSize = Integer.getInteger("benchmark.doc_size", 1024);
+
+    private final int shardNumber = Integer.getInteger("benchmark.shards", 3);
+
+    private final int childNumber = Integer.getInteger("benchmark.children", 0);
+
+    private final String[] sizes = System.getProperty("benchmark.sizes", "100,1000").split(",");
+
+    private final String[] modes = System.getProperty("benchmark.modes", "local,shard_local,remote,remote_smile")
+            .split(",");
+
+    private final int warmup = Integer.getInteger("benchmark.warmup", 1);
+
+    private final String report = System.getProperty("benchmark.report", "target/benchmark-report.json");
+
+    private ElasticsearchClusterRunner runner;
+
+    private final BulkStandInServer standIn = new BulkStandInServer();
+
+    private long sourceBytes;
+
+    private long loadedDocs;
+
+    @Override
+    protected void setUp() throws Exception {
+        runner = new ElasticsearchClusterRunner();
+        runner.onBuild(new ElasticsearchClusterRunner.Builder() {
+            @Override
+            public void build(final int number, final Builder settingsBuilder) {
+                settingsBuilder.put("index.number_of_shards", shardNumber);
+                settingsBuilder.put("index.number_of_replicas", 0);
+                settingsBuilder.putArray("discovery.zen.ping.unicast.hosts",
+                        "localhost:9301-9310");
+                settingsBuilder.put("plugin.types",
+                        "org.codelibs.elasticsearch.reindex.ReindexingPlugin");
+            }
+        }).build(newConfigs().numOfNode(1).clusterName("es-reindexing-benchmark-" + System.currentTimeMillis()));
+        runner.ensureYellow();
+        standIn.start().latency(Long.getLong("benchmark.standin.latency", 0))
+                .bandwidth(Long.getLong("benchmark.standin.bandwidth", 0));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        standIn.close();
+        runner.close();
+        runner.clean();
+    }
+
+    public void test_throughput() throws Exception {
+        load_index();
+
+        final Node node = runner.node();
+        final List<Map<String, Object>> results = new ArrayList<>();
+        for (int i = 0; i < warmup; i++) {
+            run(node, modes[0], sizes[0]);
+        }
+        for (final String mode : modes) {
+            for (final String size : sizes) {
+                results.add(run(node, mode, size));
+            }
+        }
+
+        write_report(results);
+    }
+
+    private void load_index() throws IOException {
+        runner.createIndex(INDEX, (Settings) null);
+        if (childNumber > 0) {
+            runner.createMapping(INDEX, TYPE, "{\"_parent\":{\"type\":\"" + PARENT_TYPE + "\"}}");
+        }
+
+        final int parentNumber = childNumber > 0 ? Math.max(docNumber / childNumber, 1) : 0;
+        BulkRequestBuilder bulkRequest = runner.client().prepareBulk();
+        for (int i = 0; i < docNumber + parentNumber; i++) {
+            final String source = createSource(i);
+            final IndexRequestBuilder builder;
+            if (i < parentNumber) {
+                builder = runner.client().prepareIndex(INDEX, PARENT_TYPE, "p" + i);
+            } else {
+                builder = runner.client().prepareIndex(INDEX, TYPE, String.valueOf(i));
+                if (parentNumber > 0) {
+                    builder.setParent("p" + i % parentNumber);
+                }
+            }
+            bulkRequest.add(builder.setSource(source));
+            sourceBytes += source.length();
+            if (bulkRequest.numberOfActions() >= 1000) {
+                assertFalse(bulkRequest.execute().actionGet().hasFailures());
+                bulkRequest = runner.client().prepareBulk();
+            }
+        }
+        if (bulkRequest.numberOfActions() > 0) {
+            assertFalse(bulkRequest.execute().actionGet().hasFailures());
+        }
+        loadedDocs = docNumber + parentNumber;
+
+        runner.flush();
+        runner.ensureGreen();
+        assertEquals(loadedDocs, count(INDEX));
+    }
+
+    private String createSource(final int id) {
+        final StringBuilder buf = new StringBuilder(docSize + 100);
+        buf.append("{\"id\":").append(id).append(",\"msg\":\"test ").append(id).append('"');
+        for (int n = 0; buf.length() < docSize; n++) {
+            buf.append(",\"field").append(n).append("\":\"value ").append(n)
+                    .append(" of the document ").append(id).append('"');
+        }
+        return buf.append('}').toString();
+    }
+
+    private Map<String, Object> run(final Node node, final String mode, final String size) throws IOException {
+        if (runner.indexExists(NEW_INDEX)) {
+            runner.deleteIndex(NEW_INDEX);
+        }
+        runner.createIndex(NEW_INDEX, (Settings) null);
+        if (childNumber > 0) {
+            runner.createMapping(NEW_INDEX, TYPE, "{\"_parent\":{\"type\":\"" + PARENT_TYPE + "\"}}");
+        }
+        runner.ensureGreen();
+
+        final CurlRequest request = Curl
+                .post(node, "/" + INDEX + "/_reindex/" + NEW_INDEX)
+                .param("wait_for_completion", "true")
+                .param("size", size);
+        if ("shard_local".equals(mode)) {
+            request.param("shard_local", "true");
+        } else if (mode.startsWith("remote")) {
+            request.param("url", "http://localhost:" + node.settings().get("http.port"));
+            if ("remote_smile".equals(mode)) {
+                request.param("format", "smile");
+            }
+        } else if ("standin".equals(mode)) {
+            // only the sending side of the remote path
+            request.param("url", standIn.getUrl());
+        } else if (!"local".equals(mode)) {
+            fail("Unknown mode: " + mode);
+        }
+
+        final long gcCount = getGcCount();
+        final long gcTime = getGcTime();
+        resetPeakHeap();
+        final long standInDocs = standIn.getDocs();
+        final long start = System.nanoTime();
+        try (CurlResponse curlResponse = request.execute()) {
+            final Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(map.toString(), map.containsKey("acknowledged"));
+        }
+        final long took = (System.nanoTime() - start) / 1000000L;
+
+        if ("standin".equals(mode)) {
+            assertEquals(loadedDocs, standIn.getDocs() - standInDocs);
+        } else {
+            runner.refresh();
+            assertEquals(loadedDocs, count(NEW_INDEX));
+        }
+
+        final double seconds = Math.max(took, 1) / 1000.0;
+        final Map<String, Object> result = new LinkedHashMap<>();
+        result.put("mode", mode);
+        result.put("size", Integer.parseInt(size));
+        result.put("took_in_millis", took);
+        result.put("docs_per_sec", loadedDocs / seconds);
+        result.put("mb_per_sec", sourceBytes / 1024.0 / 1024.0 / seconds);
+        result.put("heap_peak_in_bytes", getPeakHeap());
+        result.put("heap_used_in_bytes", ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+        result.put("gc_count", getGcCount() - gcCount);
+        result.put("gc_time_in_millis", getGcTime() - gcTime);
+        System.out.println("[benchmark] " + result);
+        return result;
+    }
+
+    private long count(final String index) {
+        return runner.client().prepareSearch(index).setSize(0).execute().actionGet().getHits().getTotalHits();
+    }
+
+    private void write_report(final List<Map<String, Object>> results) throws IOException {
+        final Path path = Paths.get(report);
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        try (OutputStream out = Files.newOutputStream(path)) {
+            final XContentBuilder builder = XContentFactory.jsonBuilder(out).prettyPrint();
+            builder.startObject();
+            builder.startObject("data_set");
+            builder.field("docs", loadedDocs);
+            builder.field("doc_size", docSize);
+            builder.field("shards", shardNumber);
+            builder.field("children", childNumber);
+            builder.field("source_bytes", sourceBytes);
+            builder.endObject();
+            builder.startObject("jvm");
+            builder.field("version", System.getProperty("java.version"));
+            builder.field("heap_max_in_bytes", Runtime.getRuntime().maxMemory());
+            builder.field("processors", Runtime.getRuntime().availableProcessors());
+            builder.endObject();
+            builder.field("runs", results);
+            builder.endObject();
+            builder.close();
+        }
+    }
+
+    private static long getGcCount() {
+        long count = 0;
+        for (final GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(bean.getCollectionCount(), 0);
+        }
+        return count;
+    }
+
+    private static long getGcTime() {
+        long time = 0;
+        for (final GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(bean.getCollectionTime(), 0);
+        }
+        return time;
+    }
+
+    private static void resetPeakHeap() {
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    private static long getPeakHeap() {
+        long peak = 0;
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+}
@@ -1,20 +1,34 @@
 package org.codelibs.elasticsearch.reindex;
 
 import junit.framework.TestCase;
+import org.codelibs.elasticsearch.reindex.service.PartitionChecksums;
 import org.codelibs.elasticsearch.runner.ElasticsearchClusterRunner;
 import org.codelibs.elasticsearch.runner.ElasticsearchClusterRunner.BuilderCallback;
 import org.codelibs.elasticsearch.runner.net.Curl;
+import org.codelibs.elasticsearch.runner.net.CurlRequest;
 import org.codelibs.elasticsearch.runner.net.CurlResponse;
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequestBuilder;
 import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.bytes.BytesArray;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.settings.Settings.Builder;
+import org.elasticsearch.common.xcontent.XContentHelper;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.node.Node;
+import org.elasticsearch.search.SearchHit;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static org.codelibs.elasticsearch.runner.ElasticsearchClusterRunner.newConfigs;
 
@@ -24,6 +38,8 @@ public class ReindexingPluginTest extends TestCase {
 
     private String clusterName;
 
+    private Path fileRoot;
+
     private final int docNumber = 25;
     private final int parentNumber = 10;
     private final int childNumber = 5;
@@ -31,6 +47,7 @@ public class ReindexingPluginTest extends TestCase {
     @Override
     protected void setUp() throws Exception {
         clusterName = "es-reindexing-" + System.currentTimeMillis();
+        fileRoot = Files.createTempDirectory("reindex");
         // create runner instance
         runner = new ElasticsearchClusterRunner();
         // create ES nodes
@@ -45,10 +62,19 @@ public class ReindexingPluginTest extends TestCase {
                         "localhost:9301-9310");
                 settingsBuilder.put("plugin.types",
                         "org.codelibs.elasticsearch.reindex.ReindexingPlugin");
+                settingsBuilder.putArray("path.repo", fileRoot.toString());
+                settingsBuilder.put("reindexing.file.path", fileRoot.toString());
+                // expired scroll contexts are freed soon
+                settingsBuilder.put("search.keep_alive_interval", "100ms");
+                settingsBuilder.put("reindexing.worker_stats.interval", "100ms");
+                if (number == 2) {
+                    // the second node runs jobs one by one
+                    settingsBuilder.put("reindexing.max_concurrent_jobs", 1);
+                }
                 settingsBuilder
                         .put("index.unassigned.node_left.delayed_timeout", "0");
             }
-        }).build(newConfigs().numOfNode(1).clusterName(clusterName));
+        }).build(newConfigs().numOfNode(2).clusterName(clusterName));
 
         // wait for yellow status
         runner.ensureYellow();
@@ -80,6 +106,12 @@ public class ReindexingPluginTest extends TestCase {
         runner.ensureGreen();
         test_index_to_newIndex_withSource(node, index);
 
+        runner.ensureGreen();
+        test_index_to_newIndex_withSourceFiltering(node, index);
+
+        runner.ensureGreen();
+        test_index_to_newIndex_withTransform(node, index);
+
         runner.ensureGreen();
         test_index_type_to_newIndex(node, index, type);
 
@@ -98,6 +130,75 @@ public class ReindexingPluginTest extends TestCase {
         runner.ensureGreen();
         test_index_type_to_remote_newIndex_newType(node, index, type);
 
+        runner.ensureGreen();
+        test_index_to_remote_newIndex_smile(node, index);
+
+        runner.ensureGreen();
+        test_index_to_remote_newIndex_withQuota(node, index);
+
+        runner.ensureGreen();
+        test_remote_index_to_newIndex(node, index);
+
+        runner.ensureGreen();
+        test_index_to_transport_newIndex(node, index);
+
+        runner.ensureGreen();
+        test_index_to_file_to_newIndex(node, index);
+
+        runner.ensureGreen();
+        test_index_to_newIndex_shardLocal(node, index);
+
+        runner.ensureGreen();
+        test_index_to_newIndex_groupByShard(node, index);
+
+        runner.ensureGreen();
+        test_index_to_newIndex_skipUnchanged(node, index);
+
+        runner.ensureGreen();
+        test_index_to_newIndex_routing(node);
+
+        runner.ensureGreen();
+        test_index_to_newIndex_externalVersion(node, index);
+
+        runner.ensureGreen();
+        test_index_to_newIndex_withCheckpoint(node, index);
+
+        runner.ensureGreen();
+        test_index_to_newIndex_deadLetter(node, index, type);
+
+        runner.ensureGreen();
+        test_index_to_standIn(node, index);
+
+        runner.ensureGreen();
+        test_index_to_newIndex_partitioned(node);
+
+        runner.ensureGreen();
+        test_index_to_newIndex_verify(node, index, type);
+
+        runner.ensureGreen();
+        test_index_to_newIndex_createIndex(node);
+
+        runner.ensureGreen();
+        test_index_to_newIndex_dryRun(node, index);
+
+        runner.ensureGreen();
+        test_index_to_newIndex_sample(node, index, type);
+
+        runner.ensureGreen();
+        test_index_to_newIndex_progress(node, index, type);
+
+        runner.ensureGreen();
+        test_reindexing_history(node, index);
+
+        runner.ensureGreen();
+        test_reindexing_registry(node, index);
+
+        runner.ensureGreen();
+        test_reindexing_queue(index);
+
+        runner.ensureGreen();
+        test_reindexing_createIndex_stop(index);
+
         runner.ensureGreen();
         test_reindex_with_deletion(node, index);
 
@@ -136,64 +237,1311 @@ public class ReindexingPluginTest extends TestCase {
     private void test_wait_for_completion(Node node, String index) {
         String newIndex0 = "dataset0", newIndex1 = "dataset1";
 
-        CurlResponse response0 = Curl.post(node, "/" + index + "/_reindex/" + newIndex0)
-                .param("wait_for_completion", "true").execute();
-        CurlResponse response1 = Curl.post(node, "/" + index + "/_reindex/" + newIndex1)
-                .execute();
-        Map<String, Object> map0 = response0.getContentAsMap();
-        Map<String, Object> map1 = response1.getContentAsMap();
-        assertEquals(map0.size(), 1);
-        assertTrue(map0.containsKey("acknowledged"));
-        assertEquals(map1.size(), 2);
-        assertTrue(map1.containsKey("acknowledged"));
-        assertTrue(map1.containsKey("name"));
+        CurlResponse response0 = Curl.post(node, "/" + index + "/_reindex/" + newIndex0)
+                .param("wait_for_completion", "true").execute();
+        CurlResponse response1 = Curl.post(node, "/" + index + "/_reindex/" + newIndex1)
+                .execute();
+        Map<String, Object> map0 = response0.getContentAsMap();
+        Map<String, Object> map1 = response1.getContentAsMap();
+        assertEquals(map0.size(), 1);
+        assertTrue(map0.containsKey("acknowledged"));
+        assertEquals(map1.size(), 2);
+        assertTrue(map1.containsKey("acknowledged"));
+        assertTrue(map1.containsKey("name"));
+
+        runner.flush();
+        runner.deleteIndex(newIndex0);
+        runner.deleteIndex(newIndex1);
+    }
+
+    private void test_index_to_newIndex(Node node, String index) throws IOException {
+        String newIndex = "dataset2";
+
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex)
+                .param("wait_for_completion", "true")
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(map.containsKey("acknowledged"));
+            assertNull(map.get("name"));
+        }
+
+        // causes a lucene commit, more expensive than refresh
+        runner.flush();
+
+        assertTrue(runner.indexExists(index));
+        assertTrue(runner.indexExists(newIndex));
+
+        // search documents
+        {
+            final SearchResponse searchResponse = runner.search(newIndex,
+                    // BuilderCallback对象用于加工SearchRequestBuilder对象
+                    new BuilderCallback<SearchRequestBuilder>() {
+                        @Override
+                        public SearchRequestBuilder apply(SearchRequestBuilder builder) {
+                            return builder;
+                        }
+                    });
+            assertEquals(docNumber, searchResponse.getHits().getTotalHits());
+        }
+
+        runner.deleteIndex(newIndex);
+    }
+
+    private void test_index_to_newIndex_withSource(Node node, String index) throws IOException {
+        String newIndex = "dataset2";
+
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex)
+                .param("wait_for_completion", "true")
+                .body("{\"query\":{\"term\":{\"msg\":{\"value\":\"1\"}}}}")
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(map.containsKey("acknowledged"));
+            assertNull(map.get("name"));
+        }
+
+        runner.flush();
+
+        assertTrue(runner.indexExists(index));
+        assertTrue(runner.indexExists(newIndex));
+
+        // search newly created index
+        {
+            final SearchResponse searchResponse = runner.search(newIndex,
+                    new BuilderCallback<SearchRequestBuilder>() {
+                        @Override
+                        public SearchRequestBuilder apply(SearchRequestBuilder builder) {
+                            return builder;
+                        }
+                    });
+            assertEquals(1, searchResponse.getHits().getTotalHits());
+        }
+
+        runner.deleteIndex(newIndex);
+    }
+
+    private void test_index_to_newIndex_withSourceFiltering(Node node, String index) throws IOException {
+        String newIndex = "dataset2";
+
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex)
+                .param("wait_for_completion", "true")
+                .param("source_excludes", "msg")
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(map.containsKey("acknowledged"));
+            assertNull(map.get("name"));
+        }
+
+        runner.flush();
+
+        assertTrue(runner.indexExists(index));
+        assertTrue(runner.indexExists(newIndex));
+
+        // search documents
+        {
+            final SearchResponse searchResponse = runner.search(newIndex,
+                    new BuilderCallback<SearchRequestBuilder>() {
+                        @Override
+                        public SearchRequestBuilder apply(SearchRequestBuilder builder) {
+                            return builder;
+                        }
+                    });
+            assertEquals(docNumber, searchResponse.getHits().getTotalHits());
+            for (SearchHit hit : searchResponse.getHits().getHits()) {
+                Map<String, Object> source = hit.getSource();
+                assertFalse(source.containsKey("msg"));
+                assertTrue(source.containsKey("id"));
+            }
+        }
+
+        runner.deleteIndex(newIndex);
+    }
+
+    private void test_index_to_newIndex_withTransform(Node node, String index) throws IOException {
+        String newIndex = "dataset2";
+
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex)
+                .param("wait_for_completion", "true")
+                .param("rename", "msg:message")
+                .param("cast", "id:int")
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(map.containsKey("acknowledged"));
+            assertNull(map.get("name"));
+        }
+
+        runner.flush();
+
+        assertTrue(runner.indexExists(newIndex));
+
+        // search documents
+        {
+            final SearchResponse searchResponse = runner.search(newIndex,
+                    new BuilderCallback<SearchRequestBuilder>() {
+                        @Override
+                        public SearchRequestBuilder apply(SearchRequestBuilder builder) {
+                            return builder;
+                        }
+                    });
+            assertEquals(docNumber, searchResponse.getHits().getTotalHits());
+            for (SearchHit hit : searchResponse.getHits().getHits()) {
+                Map<String, Object> source = hit.getSource();
+                assertFalse(source.containsKey("msg"));
+                assertEquals("test " + hit.getId(), source.get("message"));
+                assertEquals(Integer.valueOf(hit.getId()), source.get("id"));
+            }
+        }
+
+        runner.deleteIndex(newIndex);
+    }
+
+    private void test_index_type_to_newIndex(Node node, String index, String type) throws IOException {
+        String newIndex = "dataset2";
+        String newType = type;
+
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/" + type + "/_reindex/" + newIndex)
+                .param("wait_for_completion", "true")
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(map.containsKey("acknowledged"));
+            assertNull(map.get("name"));
+        }
+
+        runner.flush();
+
+        assertTrue(runner.indexExists(index));
+        assertTrue(runner.indexExists(newIndex));
+
+        // search documents
+        {
+            final SearchResponse searchResponse = runner.search(newIndex,
+                    newType, null, null, 0, 10);
+            assertEquals(docNumber, searchResponse.getHits().getTotalHits());
+        }
+
+        runner.deleteIndex(newIndex);
+    }
+
+    private void test_index_type_to_newIndex_newType(Node node, String index, String type) throws IOException {
+        String newIndex = "dataset2";
+        String newType = "item2";
+
+        try (CurlResponse curlResponse = Curl
+                .post(node,
+                        "/" + index + "/" + type + "/_reindex/" + newIndex
+                                + "/" + newType)
+                .param("wait_for_completion", "true").execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(map.containsKey("acknowledged"));
+            assertNull(map.get("name"));
+        }
+
+        runner.flush();
+
+        assertTrue(runner.indexExists(index));
+        assertTrue(runner.indexExists(newIndex));
+
+        // search documents
+        {
+            final SearchResponse searchResponse = runner.search(newIndex,
+                    newType, null, null, 0, 10);
+            assertEquals(docNumber, searchResponse.getHits().getTotalHits());
+        }
+
+        runner.deleteIndex(newIndex);
+    }
+
+    private void test_index_to_remote_newIndex(Node node, String index) throws IOException {
+        String newIndex = "dataset2";
+
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex)
+                .param("wait_for_completion", "true")
+                .param("url", "http://localhost:" + node.settings().get("http.port"))
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(map.containsKey("acknowledged"));
+            assertNull(map.get("name"));
+        }
+
+        runner.flush();
+
+        assertTrue(runner.indexExists(index));
+        assertTrue(runner.indexExists(newIndex));
+
+        // search documents
+        {
+            final SearchResponse searchResponse = runner.search(newIndex,
+                    new BuilderCallback<SearchRequestBuilder>() {
+                        @Override
+                        public SearchRequestBuilder apply(SearchRequestBuilder builder) {
+                            return builder;
+                        }
+                    });
+            assertEquals(docNumber, searchResponse.getHits().getTotalHits());
+        }
+
+        runner.deleteIndex(newIndex);
+    }
+
+    private void test_index_to_remote_newIndex_withSource(Node node, String index) throws IOException {
+        String newIndex = "dataset2";
+
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex)
+                .param("wait_for_completion", "true")
+                .param("url",
+                        "http://localhost:" + node.settings().get("http.port"))
+                .body("{\"query\":{\"term\":{\"msg\":{\"value\":\"1\"}}}}")
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(map.containsKey("acknowledged"));
+            assertNull(map.get("name"));
+        }
+
+        runner.flush();
+
+        assertTrue(runner.indexExists(index));
+        assertTrue(runner.indexExists(newIndex));
+
+        // search documents
+        {
+            final SearchResponse searchResponse = runner.search(newIndex,
+                    new BuilderCallback<SearchRequestBuilder>() {
+                        @Override
+                        public SearchRequestBuilder apply(SearchRequestBuilder builder) {
+                            return builder;
+                        }
+                    });
+            assertEquals(1, searchResponse.getHits().getTotalHits());
+        }
+
+        runner.deleteIndex(newIndex);
+    }
+
+    private void test_index_type_to_remote_newIndex(Node node, String index, String type) throws IOException {
+        String newIndex = "dataset2";
+        String newType = type;
+
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/" + type + "/_reindex/" + newIndex)
+                .param("wait_for_completion", "true")
+                .param("url",
+                        "http://localhost:" + node.settings().get("http.port"))
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(map.containsKey("acknowledged"));
+            assertNull(map.get("name"));
+        }
+
+        runner.flush();
+
+        assertTrue(runner.indexExists(index));
+        assertTrue(runner.indexExists(newIndex));
+
+        // search documents
+        {
+            final SearchResponse searchResponse = runner.search(newIndex,
+                    newType, null, null, 0, 10);
+            assertEquals(docNumber, searchResponse.getHits().getTotalHits());
+        }
+
+        runner.deleteIndex(newIndex);
+    }
+
+    private void test_index_type_to_remote_newIndex_newType(Node node, String index, String type) throws IOException {
+        String newIndex = "dataset2";
+        String newType = "item2";
+
+        try (CurlResponse curlResponse = Curl
+                .post(node,
+                        "/" + index + "/" + type + "/_reindex/" + newIndex
+                                + "/" + newType)
+                .param("wait_for_completion", "true")
+                .param("url",
+                        "http://localhost:" + node.settings().get("http.port"))
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(map.containsKey("acknowledged"));
+            assertNull(map.get("name"));
+        }
+
+        runner.flush();
+
+        assertTrue(runner.indexExists(index));
+        assertTrue(runner.indexExists(newIndex));
+
+        // search documents
+        {
+            final SearchResponse searchResponse = runner.search(newIndex,
+                    newType, null, null, 0, 10);
+            assertEquals(docNumber, searchResponse.getHits().getTotalHits());
+        }
+
+        runner.deleteIndex(newIndex);
+    }
+
+    private void test_index_to_remote_newIndex_smile(Node node, String index) throws IOException {
+        String newIndex = "dataset2";
+
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex)
+                .param("wait_for_completion", "true")
+                .param("url", "http://localhost:" + node.settings().get("http.port"))
+                .param("format", "smile")
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(map.containsKey("acknowledged"));
+            assertNull(map.get("name"));
+        }
+
+        runner.flush();
+
+        assertTrue(runner.indexExists(index));
+        assertTrue(runner.indexExists(newIndex));
+
+        // search documents
+        {
+            final SearchResponse searchResponse = runner.search(newIndex,
+                    new BuilderCallback<SearchRequestBuilder>() {
+                        @Override
+                        public SearchRequestBuilder apply(SearchRequestBuilder builder) {
+                            return builder;
+                        }
+                    });
+            assertEquals(docNumber, searchResponse.getHits().getTotalHits());
+            for (SearchHit hit : searchResponse.getHits().getHits()) {
+                assertEquals("test " + hit.getId(), hit.getSource().get("msg"));
+            }
+        }
+
+        runner.deleteIndex(newIndex);
+    }
+
+    private void test_index_to_remote_newIndex_withQuota(Node node, String index) throws IOException {
+        String newIndex = "dataset2";
+
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex)
+                .param("wait_for_completion", "true")
+                .param("url", "http://localhost:" + node.settings().get("http.port"))
+                .param("max_bytes_in_flight", "100b")
+                .param("max_bytes_per_sec", "1mb")
+                .param("size", "10")
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(map.containsKey("acknowledged"));
+            assertNull(map.get("name"));
+        }
+
+        runner.flush();
+
+        assertTrue(runner.indexExists(index));
+        assertTrue(runner.indexExists(newIndex));
+
+        // search documents
+        {
+            final SearchResponse searchResponse = runner.search(newIndex,
+                    new BuilderCallback<SearchRequestBuilder>() {
+                        @Override
+                        public SearchRequestBuilder apply(SearchRequestBuilder builder) {
+                            return builder;
+                        }
+                    });
+            assertEquals(docNumber, searchResponse.getHits().getTotalHits());
+        }
+
+        runner.deleteIndex(newIndex);
+    }
+
+    private void test_remote_index_to_newIndex(Node node, String index) throws IOException {
+        String newIndex = "dataset2";
+
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex)
+                .param("wait_for_completion", "true")
+                .param("source_url", "http://localhost:" + node.settings().get("http.port"))
+                .param("size", "10")
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(map.containsKey("acknowledged"));
+            assertNull(map.get("name"));
+        }
+
+        runner.flush();
+
+        assertTrue(runner.indexExists(index));
+        assertTrue(runner.indexExists(newIndex));
+
+        // search documents
+        {
+            final SearchResponse searchResponse = runner.search(newIndex,
+                    new BuilderCallback<SearchRequestBuilder>() {
+                        @Override
+                        public SearchRequestBuilder apply(SearchRequestBuilder builder) {
+                            return builder;
+                        }
+                    });
+            assertEquals(docNumber, searchResponse.getHits().getTotalHits());
+        }
+
+        runner.deleteIndex(newIndex);
+    }
+
+    private void test_index_to_transport_newIndex(Node node, String index) throws IOException {
+        String newIndex = "dataset2";
+
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex)
+                .param("wait_for_completion", "true")
+                .param("transport_hosts", "localhost:" + node.settings().get("transport.tcp.port"))
+                .param("transport_cluster_name", clusterName)
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(map.containsKey("acknowledged"));
+            assertNull(map.get("name"));
+        }
+
+        runner.flush();
+
+        assertTrue(runner.indexExists(index));
+        assertTrue(runner.indexExists(newIndex));
+
+        // search documents
+        {
+            final SearchResponse searchResponse = runner.search(newIndex,
+                    new BuilderCallback<SearchRequestBuilder>() {
+                        @Override
+                        public SearchRequestBuilder apply(SearchRequestBuilder builder) {
+                            return builder;
+                        }
+                    });
+            assertEquals(docNumber, searchResponse.getHits().getTotalHits());
+        }
+
+        runner.deleteIndex(newIndex);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void test_reindexing_registry(Node node, String index) throws IOException {
+        try (CurlResponse curlResponse = Curl.get(node, "/_reindex").execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(map.containsKey("names"));
+        }
+
+        // a job started on one node is found and stopped through another node
+        Node node1 = runner.getNode(0);
+        Node node2 = runner.getNode(1);
+        try (BulkStandInServer server = new BulkStandInServer().start()) {
+            server.latency(500);
+            for (String partitions : new String[] { null, "3" }) {
+                // jobs left by other tests
+                Set<String> names = new HashSet<>();
+                try (CurlResponse curlResponse = Curl.get(node2, "/_reindex").execute()) {
+                    names.addAll((List<String>) curlResponse.getContentAsMap().get("names"));
+                }
+
+                String name;
+                CurlRequest request = Curl
+                        .post(node1, "/" + index + "/_reindex/dataset2")
+                        .param("url", server.getUrl())
+                        .param("size", "1");
+                if (partitions != null) {
+                    request.param("partition_field", "num").param("partitions", partitions);
+                }
+                try (CurlResponse curlResponse = request.execute()) {
+                    name = (String) curlResponse.getContentAsMap().get("name");
+                    assertNotNull(name);
+                }
+
+                // partition workers are not shown as jobs
+                try (CurlResponse curlResponse = Curl.get(node2, "/_reindex").execute()) {
+                    Set<String> newNames = new HashSet<>((List<String>) curlResponse.getContentAsMap().get("names"));
+                    newNames.removeAll(names);
+                    assertEquals(newNames.toString(), 1, newNames.size());
+                    assertTrue(newNames.contains(name));
+                }
+
+                try (CurlResponse curlResponse = Curl.get(node2, "/_reindex/" + name).execute()) {
+                    Map<String, Object> map = curlResponse.getContentAsMap();
+                    assertEquals(Boolean.TRUE, map.get("found"));
+                    Map<String, Object> stats = (Map<String, Object>) map.get("stats");
+                    assertEquals(node1.client().admin().cluster().prepareState().setLocal(true).execute().actionGet()
+                            .getState().nodes().getLocalNodeId(), stats.get("node"));
+                    assertEquals("running", stats.get("state"));
+                }
+
+                try (CurlResponse curlResponse = Curl.delete(node2, "/_reindex/" + name).execute()) {
+                    assertEquals(200, curlResponse.getHttpStatusCode());
+                    assertEquals(name, curlResponse.getContentAsMap().get("name"));
+                }
+
+                try (CurlResponse curlResponse = Curl.get(node1, "/_reindex/" + name).execute()) {
+                    assertEquals(Boolean.FALSE, curlResponse.getContentAsMap().get("found"));
+                }
+            }
+        }
+
+        try (CurlResponse curlResponse = Curl.get(node, "/_reindex/unknown").execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertEquals("unknown", map.get("name"));
+            assertEquals(Boolean.FALSE, map.get("found"));
+        }
+
+        try (CurlResponse curlResponse = Curl.delete(node, "/_reindex/unknown").execute()) {
+            assertEquals(500, curlResponse.getHttpStatusCode());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void test_reindexing_queue(String index) throws Exception {
+        Node node2 = runner.getNode(1);
+
+        try (BulkStandInServer server = new BulkStandInServer().start()) {
+            server.latency(300);
+            // takes the only slot of node2
+            String running;
+            try (CurlResponse curlResponse = Curl.post(node2, "/" + index + "/_reindex/dataset2")
+                    .param("url", server.getUrl())
+                    .param("size", "1")
+                    .execute()) {
+                running = (String) curlResponse.getContentAsMap().get("name");
+            }
+
+            // invalid parameters are rejected without waiting for the slot
+            try (CurlResponse curlResponse = Curl.post(node2, "/" + index + "/_reindex/dataset2")
+                    .param("op_type", "unknown")
+                    .execute()) {
+                assertEquals(500, curlResponse.getHttpStatusCode());
+            }
+            try (CurlResponse curlResponse = Curl.post(node2, "/_reindex/dataset2").execute()) {
+                assertEquals(500, curlResponse.getHttpStatusCode());
+            }
+
+            String[] priorities = { "0", "0", "5", "0" };
+            List<String> names = new ArrayList<>();
+            for (String priority : priorities) {
+                try (CurlResponse curlResponse = Curl.post(node2, "/" + index + "/_reindex/dataset2")
+                        .param("url", server.getUrl())
+                        .param("size", "10")
+                        .param("priority", priority)
+                        .execute()) {
+                    names.add((String) curlResponse.getContentAsMap().get("name"));
+                }
+            }
+            for (int i = 0; i < names.size(); i++) {
+                try (CurlResponse curlResponse = Curl.get(node2, "/_reindex/" + names.get(i)).execute()) {
+                    Map<String, Object> stats = (Map<String, Object>) curlResponse.getContentAsMap().get("stats");
+                    assertEquals("queued", stats.get("state"));
+                    assertEquals(Integer.parseInt(priorities[i]), ((Number) stats.get("priority")).intValue());
+                }
+            }
+
+            // a queued job is stopped before it starts
+            try (CurlResponse curlResponse = Curl.delete(node2, "/_reindex/" + names.get(3)).execute()) {
+                assertEquals(200, curlResponse.getHttpStatusCode());
+            }
+            try (CurlResponse curlResponse = Curl.get(node2, "/_reindex/" + names.get(3)).execute()) {
+                Map<String, Object> map = curlResponse.getContentAsMap();
+                Map<String, Object> stats = (Map<String, Object>) map.get("stats");
+                assertTrue(String.valueOf(map), Boolean.FALSE.equals(map.get("found")) || "failed".equals(stats.get("state")));
+            }
+
+            try (CurlResponse curlResponse = Curl.delete(node2, "/_reindex/" + running).execute()) {
+                assertEquals(200, curlResponse.getHttpStatusCode());
+            }
+
+            // the higher priority first, and in order for the same priority
+            List<String> started = new ArrayList<>();
+            for (int i = 0; i < 300 && started.size() < 3; i++) {
+                for (String name : names.subList(0, 3)) {
+                    if (started.contains(name)) {
+                        continue;
+                    }
+                    try (CurlResponse curlResponse = Curl.get(node2, "/_reindex/" + name).execute()) {
+                        Map<String, Object> map = curlResponse.getContentAsMap();
+                        Map<String, Object> stats = (Map<String, Object>) map.get("stats");
+                        if (!Boolean.TRUE.equals(map.get("found")) || !"queued".equals(stats.get("state"))) {
+                            started.add(name);
+                        }
+                    }
+                }
+                Thread.sleep(50);
+            }
+            assertEquals(Arrays.asList(names.get(2), names.get(0), names.get(1)), started);
+            // the stopped job may have sent some documents
+            for (int i = 0; i < 100 && server.getDocs() < 3 * docNumber; i++) {
+                Thread.sleep(100);
+            }
+            assertTrue(String.valueOf(server.getDocs()), server.getDocs() >= 3 * docNumber);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void test_reindexing_createIndex_stop(String index) throws Exception {
+        Node node2 = runner.getNode(1);
+
+        try (BulkStandInServer server = new BulkStandInServer().start()) {
+            server.latency(2000);
+            // a job creating the target index is shown, and takes the only slot of node2
+            String creating;
+            try (CurlResponse curlResponse = Curl.post(node2, "/" + index + "/_reindex/dataset2")
+                    .param("url", server.getUrl())
+                    .param("create_index", "true")
+                    .execute()) {
+                creating = (String) curlResponse.getContentAsMap().get("name");
+            }
+            try (CurlResponse curlResponse = Curl.get(node2, "/_reindex/" + creating).execute()) {
+                Map<String, Object> map = curlResponse.getContentAsMap();
+                assertEquals(Boolean.TRUE, map.get("found"));
+                assertEquals("running", ((Map<String, Object>) map.get("stats")).get("state"));
+            }
+            String queued;
+            try (CurlResponse curlResponse = Curl.post(node2, "/" + index + "/_reindex/dataset2")
+                    .param("url", server.getUrl())
+                    .execute()) {
+                queued = (String) curlResponse.getContentAsMap().get("name");
+            }
+            try (CurlResponse curlResponse = Curl.get(node2, "/_reindex/" + queued).execute()) {
+                Map<String, Object> stats = (Map<String, Object>) curlResponse.getContentAsMap().get("stats");
+                assertEquals("queued", stats.get("state"));
+            }
+
+            // the job stops without reading the source
+            try (CurlResponse curlResponse = Curl.delete(node2, "/_reindex/" + creating).execute()) {
+                assertEquals(200, curlResponse.getHttpStatusCode());
+            }
+            try (CurlResponse curlResponse = Curl.get(node2, "/_reindex/" + creating)
+                    .param("wait_for_completion", "true")
+                    .param("timeout", "30s")
+                    .execute()) {
+                // the failure of the job
+                assertEquals(500, curlResponse.getHttpStatusCode());
+            }
+            try (CurlResponse curlResponse = Curl.get(node2, "/_reindex/" + queued)
+                    .param("wait_for_completion", "true")
+                    .param("timeout", "30s")
+                    .execute()) {
+                assertEquals("done", curlResponse.getContentAsMap().get("state"));
+            }
+            assertEquals(docNumber, server.getDocs());
+        }
+    }
+
+    private void test_index_to_newIndex_sample(Node node, String index, String type) throws IOException {
+        String newIndex1 = "dataset2";
+        String newIndex2 = "dataset3";
+
+        for (String newIndex : new String[] { newIndex1, newIndex2 }) {
+            try (CurlResponse curlResponse = Curl
+                    .post(node, "/" + index + "/_reindex/" + newIndex)
+                    .param("wait_for_completion", "true")
+                    .param("sample_ratio", "0.5")
+                    .param("sample_seed", "42")
+                    .param("size", "5")
+                    .execute()) {
+                Map<String, Object> map = curlResponse.getContentAsMap();
+                assertTrue(map.containsKey("acknowledged"));
+            }
+        }
+        runner.refresh();
+
+        // the same seed selects the same documents
+        final SearchResponse response1 = runner.search(newIndex1, type, null, null, 0, docNumber);
+        final SearchResponse response2 = runner.search(newIndex2, type, null, null, 0, docNumber);
+        final long count = response1.getHits().getTotalHits();
+        assertTrue(String.valueOf(count), count > 0 && count < docNumber);
+        assertEquals(count, response2.getHits().getTotalHits());
+        final Set<String> ids = new HashSet<>();
+        for (SearchHit hit : response1.getHits().getHits()) {
+            ids.add(hit.getId());
+        }
+        for (SearchHit hit : response2.getHits().getHits()) {
+            assertTrue(ids.contains(hit.getId()));
+        }
+        runner.deleteIndex(newIndex1);
+        runner.deleteIndex(newIndex2);
+
+        // the query in the request body is sampled
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex1)
+                .param("wait_for_completion", "true")
+                .param("sample_ratio", "1")
+                .body("{\"query\":{\"term\":{\"id\":\"1\"}}}")
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(map.containsKey("acknowledged"));
+        }
+        runner.refresh();
+        assertEquals(1, runner.count(newIndex1, type).getHits().getTotalHits());
+        runner.deleteIndex(newIndex1);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void test_index_to_newIndex_progress(Node node, String index, String type) throws IOException {
+        String newIndex = "dataset2";
+
+        // the progress is returned at the timeout, or the result if completed
+        String name;
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex)
+                .param("wait_for_completion", "true")
+                .param("timeout", "1ms")
+                .param("size", "10")
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(map.containsKey("acknowledged"));
+            name = (String) map.get("name");
+            assertNotNull(name);
+            assertTrue(map.containsKey("completed"));
+            Map<String, Object> stats = (Map<String, Object>) map.get("stats");
+            assertTrue(stats.containsKey("docs"));
+            assertTrue(stats.containsKey("docs_per_sec"));
+        }
+
+        // long polling until the completion
+        try (CurlResponse curlResponse = Curl.get(node, "/_reindex/" + name)
+                .param("wait_for_completion", "true")
+                .param("timeout", "30s")
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertEquals(Boolean.TRUE, map.get("found"));
+            assertEquals(Boolean.TRUE, map.get("completed"));
+            assertEquals("done", map.get("state"));
+            Map<String, Object> stats = (Map<String, Object>) map.get("stats");
+            assertEquals(docNumber, ((Number) stats.get("docs")).intValue());
+            assertEquals(docNumber, ((Number) stats.get("total")).intValue());
+        }
+        runner.refresh();
+        assertEquals(docNumber, runner.count(newIndex, type).getHits().getTotalHits());
+        runner.deleteIndex(newIndex);
+
+        // the final stats are found on the other node
+        Node node2 = node == runner.getNode(0) ? runner.getNode(1) : runner.getNode(0);
+        try (CurlResponse curlResponse = Curl.get(node2, "/_reindex/" + name)
+                .param("wait_for_completion", "true")
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertEquals(Boolean.TRUE, map.get("found"));
+            Map<String, Object> stats = (Map<String, Object>) map.get("stats");
+            assertEquals("done", stats.get("state"));
+            assertEquals(docNumber, ((Number) stats.get("docs")).intValue());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void test_reindexing_history(Node node, String index) throws Exception {
+        String newIndex = "dataset2";
+
+        String name;
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex)
+                .param("wait_for_completion", "true")
+                .param("timeout", "30s")
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertEquals(Boolean.TRUE, map.get("completed"));
+            name = (String) map.get("name");
+        }
+        runner.deleteIndex(newIndex);
+
+        // records are written after the completion
+        Map<String, Object> record = null;
+        for (int i = 0; i < 20 && record == null; i++) {
+            runner.refresh();
+            try (CurlResponse curlResponse = Curl.get(node, "/_reindex/_history")
+                    .param("toindex", newIndex)
+                    .param("state", "done")
+                    .param("size", "100")
+                    .execute()) {
+                Map<String, Object> map = curlResponse.getContentAsMap();
+                assertTrue(map.containsKey("total"));
+                for (Map<String, Object> value : (List<Map<String, Object>>) map.get("history")) {
+                    if (name.equals(value.get("name"))) {
+                        record = value;
+                    }
+                }
+            }
+            if (record == null) {
+                Thread.sleep(500);
+            }
+        }
+        assertNotNull(record);
+        assertEquals(index, ((Map<String, Object>) record.get("params")).get("index"));
+        assertEquals(docNumber, ((Number) record.get("docs")).intValue());
+        assertTrue(((Number) record.get("end_time_in_millis")).longValue()
+                >= ((Number) record.get("start_time_in_millis")).longValue());
+        assertTrue(record.containsKey("bytes"));
+        assertTrue(record.containsKey("docs_per_sec"));
+        assertTrue(record.containsKey("peak_docs_per_sec"));
+        assertTrue(record.containsKey("mb_per_sec"));
+        assertTrue(record.containsKey("recoveries"));
+        assertTrue(record.containsKey("search_time_in_millis"));
+        assertTrue(record.containsKey("bulk_time_in_millis"));
+
+        // records are filtered by state
+        try (CurlResponse curlResponse = Curl.get(node, "/_reindex/_history")
+                .param("state", "unknown")
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertEquals(0, ((Number) map.get("total")).intValue());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void test_index_to_newIndex_dryRun(Node node, String index) throws IOException {
+        String newIndex = "dataset2";
+
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex)
+                .param("dry_run", "true")
+                .param("size", "10")
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            Map<String, Object> plan = (Map<String, Object>) map.get("dry_run");
+            assertEquals(docNumber, ((Number) plan.get("docs")).intValue());
+            assertEquals(docNumber, ((Number) plan.get("sampled_docs")).intValue());
+            assertTrue(((Number) plan.get("total_bytes")).longValue() > 0);
+            assertTrue(plan.containsKey("estimated_time_in_millis"));
+            Map<String, Object> recommended = (Map<String, Object>) plan.get("recommended");
+            assertEquals(10000, ((Number) recommended.get("size")).intValue());
+            assertFalse(recommended.containsKey("format"));
+        }
+
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex)
+                .param("dry_run", "true")
+                .param("dry_run_pages", "1")
+                .param("size", "5")
+                .param("url", "http://localhost:" + node.settings().get("http.port"))
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            Map<String, Object> plan = (Map<String, Object>) map.get("dry_run");
+            assertEquals(5, ((Number) plan.get("sampled_docs")).intValue());
+            Map<String, Object> recommended = (Map<String, Object>) plan.get("recommended");
+            assertTrue(recommended.containsKey("format"));
+        }
+
+        // nothing is written
+        assertFalse(runner.indexExists(newIndex));
+        assertEquals(0, runner.client().admin().indices().prepareGetIndex().setIndices(newIndex + "-dry-run-*")
+                .execute().actionGet().indices().length);
+    }
+
+    private void test_index_to_newIndex_createIndex(Node node) throws IOException {
+        final String index = "analyzed";
+        final String type = "item";
+        String newIndex = "analyzed2";
+        runner.createIndex(index, new BuilderCallback<CreateIndexRequestBuilder>() {
+            @Override
+            public CreateIndexRequestBuilder apply(CreateIndexRequestBuilder builder) {
+                return builder.setSettings("{\"analysis\":{\"analyzer\":{\"my_analyzer\":{\"type\":\"custom\",\"tokenizer\":\"keyword\"}}}}")
+                        .addMapping(type, "{\"" + type + "\":{\"properties\":{\"msg\":{\"type\":\"string\",\"analyzer\":\"my_analyzer\"}}}}");
+            }
+        });
+        for (int i = 0; i < docNumber; i++) {
+            runner.insert(index, type, String.valueOf(i), "{\"msg\":\"test " + i + "\"}");
+        }
+        runner.refresh();
+
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex)
+                .param("wait_for_completion", "true")
+                .param("create_index", "true")
+                .body("{\"create_index\":{\"settings\":{\"number_of_replicas\":0}},\"query\":{\"match_all\":{}}}")
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(map.containsKey("acknowledged"));
+        }
+        runner.refresh();
+        assertEquals(docNumber, runner.count(newIndex, type).getHits().getTotalHits());
+        Settings settings = runner.client().admin().indices().prepareGetSettings(newIndex).execute().actionGet()
+                .getIndexToSettings().get(newIndex);
+        // a small index needs only one shard
+        assertEquals("1", settings.get("index.number_of_shards"));
+        assertEquals("0", settings.get("index.number_of_replicas"));
+        assertEquals("keyword", settings.get("index.analysis.analyzer.my_analyzer.tokenizer"));
+        String mapping = runner.client().admin().indices().prepareGetMappings(newIndex).execute().actionGet()
+                .getMappings().get(newIndex).get(type).source().string();
+        assertTrue(mapping, mapping.contains("my_analyzer"));
+        runner.deleteIndex(newIndex);
+
+        // the target index in a remote cluster
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex)
+                .param("wait_for_completion", "true")
+                .param("create_index", "true")
+                .param("url", "http://localhost:" + node.settings().get("http.port"))
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(map.containsKey("acknowledged"));
+        }
+        runner.refresh();
+        assertEquals(docNumber, runner.count(newIndex, type).getHits().getTotalHits());
+        settings = runner.client().admin().indices().prepareGetSettings(newIndex).execute().actionGet()
+                .getIndexToSettings().get(newIndex);
+        assertEquals("1", settings.get("index.number_of_shards"));
+        assertEquals("keyword", settings.get("index.analysis.analyzer.my_analyzer.tokenizer"));
+
+        runner.deleteIndex(index);
+        runner.deleteIndex(newIndex);
+    }
+
+    private void test_index_to_newIndex_verify(Node node, String index, String type) throws IOException {
+        String newIndex = "dataset2";
+
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex)
+                .param("wait_for_completion", "true")
+                .param("verify", "true")
+                .param("size", "10")
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(map.containsKey("acknowledged"));
+        }
+        runner.deleteIndex(newIndex);
+
+        // smile documents are compared with json ones
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex)
+                .param("wait_for_completion", "true")
+                .param("url", "http://localhost:" + node.settings().get("http.port"))
+                .param("format", "smile")
+                .param("verify", "true")
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(map.containsKey("acknowledged"));
+        }
+        runner.deleteIndex(newIndex);
+
+        // transformed documents are compared by ids
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex)
+                .param("wait_for_completion", "true")
+                .param("rename", "msg:message")
+                .param("verify", "true")
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(map.containsKey("acknowledged"));
+        }
+        runner.deleteIndex(newIndex);
+
+        // a document which is not in the source
+        runner.createIndex(newIndex, (Settings) null);
+        runner.insert(newIndex, type, "extra", "{\"msg\":\"extra\"}");
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex)
+                .param("wait_for_completion", "true")
+                .param("verify", "true")
+                .param("verify_partitions", "4")
+                .execute()) {
+            assertEquals(500, curlResponse.getHttpStatusCode());
+        }
+        runner.refresh();
+        assertEquals(docNumber + 1, runner.count(newIndex, type).getHits().getTotalHits());
+
+        // lost documents are copied again by the partitions which differ
+        runner.delete(newIndex, type, "1");
+        runner.delete(newIndex, type, "2");
+        runner.refresh();
+        String hashPartitions = PartitionChecksums.partition("1", 4) + "," + PartitionChecksums.partition("2", 4);
+        long selected = 0;
+        for (int i = 0; i < docNumber; i++) {
+            int partition = PartitionChecksums.partition(String.valueOf(i), 4);
+            if (partition == PartitionChecksums.partition("1", 4) || partition == PartitionChecksums.partition("2", 4)) {
+                selected++;
+            }
+        }
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex)
+                .param("wait_for_completion", "true")
+                .param("verify_partitions", "4")
+                .param("hash_partitions", hashPartitions)
+                .param("size", "10")
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(map.containsKey("acknowledged"));
+        }
+        runner.refresh();
+        assertEquals(docNumber + 1, runner.count(newIndex, type).getHits().getTotalHits());
+        runner.deleteIndex(newIndex);
+
+        // only the documents of the partitions are copied
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex)
+                .param("wait_for_completion", "true")
+                .param("verify_partitions", "4")
+                .param("hash_partitions", hashPartitions)
+                .param("size", "3")
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(map.containsKey("acknowledged"));
+        }
+        runner.refresh();
+        assertEquals(selected, runner.count(newIndex, type).getHits().getTotalHits());
+        runner.deleteIndex(newIndex);
+
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex)
+                .param("verify_partitions", "4")
+                .param("hash_partitions", "4")
+                .execute()) {
+            assertEquals(500, curlResponse.getHttpStatusCode());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void test_index_to_newIndex_partitioned(Node node) throws IOException {
+        String index = "numbers";
+        String newIndex = "numbers2";
+        runner.createIndex(index, (Settings) null);
+        for (int i = 0; i < docNumber; i++) {
+            runner.insert(index, "item", String.valueOf(i), "{\"num\":" + (i * 7) + "}");
+        }
+        // documents without the field
+        runner.insert(index, "item", "none1", "{\"msg\":\"none\"}");
+        runner.insert(index, "item", "none2", "{\"msg\":\"none\"}");
+        runner.refresh();
+
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex)
+                .param("wait_for_completion", "true")
+                .param("partition_field", "num")
+                .param("partitions", "4")
+                .param("size", "3")
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(map.containsKey("acknowledged"));
+            assertNull(map.get("name"));
+        }
+
+        runner.refresh();
+        assertEquals(docNumber + 2, runner.count(newIndex, "item").getHits().getTotalHits());
+        assertEquals(docNumber + 2, runner.search(newIndex, new BuilderCallback<SearchRequestBuilder>() {
+            @Override
+            public SearchRequestBuilder apply(SearchRequestBuilder builder) {
+                return builder.setSize(100);
+            }
+        }).getHits().getHits().length);
+
+        runner.deleteIndex(newIndex);
+
+        // longs above 2^53 are rounded by min and max aggregations, but the outer partitions are open
+        String longIndex = "longs";
+        runner.createIndex(longIndex, (Settings) null);
+        final long base = (1L << 53) + 3;
+        for (int i = 0; i < docNumber; i++) {
+            runner.insert(longIndex, "item", String.valueOf(i), "{\"num\":" + (base + i * 1000L) + "}");
+        }
+        runner.refresh();
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + longIndex + "/_reindex/" + newIndex)
+                .param("wait_for_completion", "true")
+                .param("partition_field", "num")
+                .param("partitions", "4")
+                .execute()) {
+            assertEquals(200, curlResponse.getHttpStatusCode());
+        }
+        runner.refresh();
+        assertEquals(docNumber, runner.count(newIndex, "item").getHits().getTotalHits());
+        runner.deleteIndex(longIndex);
+
+        // partitions recover lost scrolls within their ranges and post_filter
+        try (BulkStandInServer server = new BulkStandInServer().start()) {
+            server.latency(1500);
+            try (CurlResponse curlResponse = Curl
+                    .post(node, "/" + index + "/_reindex/" + newIndex)
+                    .param("url", server.getUrl())
+                    .param("wait_for_completion", "true")
+                    .param("timeout", "1m")
+                    .param("partition_field", "num")
+                    .param("partitions", "4")
+                    .param("checkpoint_field", "num")
+                    .param("scroll", "1s")
+                    .param("size", "3")
+                    .body("{\"post_filter\":{\"range\":{\"num\":{\"lt\":100}}}}")
+                    .execute()) {
+                Map<String, Object> map = curlResponse.getContentAsMap();
+                assertEquals(map.toString(), "done", map.get("state"));
+                Map<String, Object> stats = (Map<String, Object>) map.get("stats");
+                assertTrue(stats.toString(), ((Number) stats.get("recoveries")).intValue() > 0);
+            }
+
+            // documents at checkpoints are sent again, and others are sent once
+            Set<String> expected = new HashSet<>();
+            for (int i = 0; i * 7 < 100; i++) {
+                expected.add(String.valueOf(i));
+            }
+            assertEquals(expected, new HashSet<>(server.getIds()));
+            assertTrue(server.getIds().toString(), server.getIds().size() <= expected.size() + 4);
+        }
+
+        runner.deleteIndex(index);
+        runner.deleteIndex(newIndex);
+    }
+
+    private void test_index_to_standIn(Node node, String index) throws IOException {
+        String newIndex = "dataset2";
+
+        try (BulkStandInServer server = new BulkStandInServer().start()) {
+            server.latency(10).bandwidth(1024 * 1024);
+            try (CurlResponse curlResponse = Curl
+                    .post(node, "/" + index + "/_reindex/" + newIndex)
+                    .param("wait_for_completion", "true")
+                    .param("url", server.getUrl())
+                    .param("size", "10")
+                    .execute()) {
+                Map<String, Object> map = curlResponse.getContentAsMap();
+                assertTrue(map.containsKey("acknowledged"));
+            }
+            assertEquals(docNumber, server.getDocs());
+            assertEquals(docNumber, new HashSet<>(server.getIds()).size());
+
+            // smile bulk bodies are split by 0xFF
+            try (CurlResponse curlResponse = Curl
+                    .post(node, "/" + index + "/_reindex/" + newIndex)
+                    .param("wait_for_completion", "true")
+                    .param("url", server.getUrl())
+                    .param("format", "smile")
+                    .execute()) {
+                Map<String, Object> map = curlResponse.getContentAsMap();
+                assertTrue(map.containsKey("acknowledged"));
+            }
+            assertEquals(docNumber * 2, server.getDocs());
+
+            // an error response fails the job
+            server.respond(503, 1);
+            try (CurlResponse curlResponse = Curl
+                    .post(node, "/" + index + "/_reindex/" + newIndex)
+                    .param("wait_for_completion", "true")
+                    .param("url", server.getUrl())
+                    .execute()) {
+                assertEquals(500, curlResponse.getHttpStatusCode());
+            }
 
-        runner.flush();
-        runner.deleteIndex(newIndex0);
-        runner.deleteIndex(newIndex1);
+            // failed items of a successful response fail the job
+            server.failEvery(5, 429);
+            try (CurlResponse curlResponse = Curl
+                    .post(node, "/" + index + "/_reindex/" + newIndex)
+                    .param("wait_for_completion", "true")
+                    .param("url", server.getUrl())
+                    .execute()) {
+                assertEquals(500, curlResponse.getHttpStatusCode());
+            }
+            assertTrue(server.getFailedDocs() > 0);
+        }
     }
 
-    private void test_index_to_newIndex(Node node, String index) throws IOException {
+    private void test_index_to_newIndex_deadLetter(Node node, String index, final String type) throws IOException {
         String newIndex = "dataset2";
+        String deadLetterIndex = "dataset2-dead-letter";
+        // msg cannot be indexed as a number
+        runner.createIndex(newIndex, new BuilderCallback<CreateIndexRequestBuilder>() {
+            @Override
+            public CreateIndexRequestBuilder apply(CreateIndexRequestBuilder builder) {
+                return builder.addMapping(type, "{\"" + type + "\":{\"properties\":{\"msg\":{\"type\":\"integer\"}}}}");
+            }
+        });
+        runner.ensureGreen(newIndex);
 
         try (CurlResponse curlResponse = Curl
                 .post(node, "/" + index + "/_reindex/" + newIndex)
                 .param("wait_for_completion", "true")
+                .param("on_failure", "dead_letter")
+                .param("size", "10")
                 .execute()) {
             Map<String, Object> map = curlResponse.getContentAsMap();
             assertTrue(map.containsKey("acknowledged"));
             assertNull(map.get("name"));
         }
 
-        // causes a lucene commit, more expensive than refresh
         runner.flush();
+        runner.refresh();
 
-        assertTrue(runner.indexExists(index));
-        assertTrue(runner.indexExists(newIndex));
+        assertTrue(runner.indexExists(deadLetterIndex));
 
         // search documents
         {
-            final SearchResponse searchResponse = runner.search(newIndex,
-                    // BuilderCallback对象用于加工SearchRequestBuilder对象
+            final SearchResponse searchResponse = runner.search(deadLetterIndex,
                     new BuilderCallback<SearchRequestBuilder>() {
                         @Override
                         public SearchRequestBuilder apply(SearchRequestBuilder builder) {
-                            return builder;
+                            return builder.setSize(1);
                         }
                     });
             assertEquals(docNumber, searchResponse.getHits().getTotalHits());
+            Map<String, Object> source = searchResponse.getHits().getAt(0).getSource();
+            assertEquals(newIndex, source.get("index"));
+            assertNotNull(source.get("reason"));
+            assertNotNull(source.get("source"));
+        }
+        runner.deleteIndex(deadLetterIndex);
+
+        // dead_letter_file is confined to reindexing.file.path
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex)
+                .param("wait_for_completion", "true")
+                .param("on_failure", "dead_letter")
+                .param("dead_letter_file", "../dead-letter.json")
+                .execute()) {
+            assertEquals(500, curlResponse.getHttpStatusCode());
+        }
+        assertFalse(Files.exists(fileRoot.resolveSibling("dead-letter.json")));
+
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex)
+                .param("wait_for_completion", "true")
+                .param("on_failure", "dead_letter")
+                .param("dead_letter_file", "dead-letter.json")
+                .param("size", "10")
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(map.containsKey("acknowledged"));
+        }
+        assertEquals(docNumber, Files.readAllLines(fileRoot.resolve("dead-letter.json"), StandardCharsets.UTF_8).size());
+
+        // partitions of a job append to the same file line by line
+        String numbers = "letters";
+        runner.createIndex(numbers, (Settings) null);
+        for (int i = 0; i < docNumber; i++) {
+            runner.insert(numbers, type, String.valueOf(i), "{\"num\":" + i + ",\"msg\":\"test " + i + "\"}");
+        }
+        runner.refresh();
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + numbers + "/_reindex/" + newIndex)
+                .param("wait_for_completion", "true")
+                .param("on_failure", "dead_letter")
+                .param("dead_letter_file", "dead-letter-partitions.json")
+                .param("partition_field", "num")
+                .param("partitions", "4")
+                .param("size", "2")
+                .execute()) {
+            assertEquals(200, curlResponse.getHttpStatusCode());
+        }
+        Set<String> ids = new HashSet<>();
+        for (String line : Files.readAllLines(fileRoot.resolve("dead-letter-partitions.json"), StandardCharsets.UTF_8)) {
+            ids.add((String) XContentHelper.convertToMap(new BytesArray(line), false).v2().get("id"));
         }
+        assertEquals(docNumber, ids.size());
+        runner.deleteIndex(numbers);
 
         runner.deleteIndex(newIndex);
     }
 
-    private void test_index_to_newIndex_withSource(Node node, String index) throws IOException {
+    @SuppressWarnings("unchecked")
+    private void test_index_to_newIndex_withCheckpoint(Node node, String index) throws IOException {
         String newIndex = "dataset2";
 
         try (CurlResponse curlResponse = Curl
                 .post(node, "/" + index + "/_reindex/" + newIndex)
                 .param("wait_for_completion", "true")
-                .body("{\"query\":{\"term\":{\"msg\":{\"value\":\"1\"}}}}")
+                .param("checkpoint_field", "id")
+                .param("stall_timeout", "1m")
+                .param("size", "10")
                 .execute()) {
             Map<String, Object> map = curlResponse.getContentAsMap();
             assertTrue(map.containsKey("acknowledged"));
@@ -202,10 +1550,7 @@ public class ReindexingPluginTest extends TestCase {
 
         runner.flush();
 
-        assertTrue(runner.indexExists(index));
-        assertTrue(runner.indexExists(newIndex));
-
-        // search newly created index
+        // search documents
         {
             final SearchResponse searchResponse = runner.search(newIndex,
                     new BuilderCallback<SearchRequestBuilder>() {
@@ -214,86 +1559,250 @@ public class ReindexingPluginTest extends TestCase {
                             return builder;
                         }
                     });
-            assertEquals(1, searchResponse.getHits().getTotalHits());
+            assertEquals(docNumber, searchResponse.getHits().getTotalHits());
         }
 
         runner.deleteIndex(newIndex);
-    }
 
-    private void test_index_type_to_newIndex(Node node, String index, String type) throws IOException {
-        String newIndex = "dataset2";
-        String newType = type;
+        // a scroll context expires while a page is sent to a slow target, and the search restarts from the checkpoint
+        try (BulkStandInServer server = new BulkStandInServer().start()) {
+            server.latency(1500);
+            try (CurlResponse curlResponse = Curl
+                    .post(node, "/" + index + "/_reindex/" + newIndex)
+                    .param("url", server.getUrl())
+                    .param("wait_for_completion", "true")
+                    .param("timeout", "1m")
+                    .param("checkpoint_field", "id")
+                    .param("scroll", "1s")
+                    .param("size", "10")
+                    .execute()) {
+                Map<String, Object> map = curlResponse.getContentAsMap();
+                assertEquals(map.toString(), "done", map.get("state"));
+                Map<String, Object> stats = (Map<String, Object>) map.get("stats");
+                assertTrue(stats.toString(), ((Number) stats.get("recoveries")).intValue() > 0);
+            }
 
-        try (CurlResponse curlResponse = Curl
-                .post(node, "/" + index + "/" + type + "/_reindex/" + newIndex)
-                .param("wait_for_completion", "true")
-                .execute()) {
-            Map<String, Object> map = curlResponse.getContentAsMap();
-            assertTrue(map.containsKey("acknowledged"));
-            assertNull(map.get("name"));
+            // documents at a checkpoint are sent again, and no document is lost
+            Set<String> ids = new HashSet<>(server.getIds());
+            assertEquals(docNumber, ids.size());
+            for (int i = 0; i < docNumber; i++) {
+                assertTrue(ids.contains(String.valueOf(i)));
+            }
+            assertTrue(server.getIds().toString(), server.getIds().size() < docNumber + 3);
         }
 
-        runner.flush();
+        // documents without the checkpoint field are sorted last, and are read after a recovery
+        String missingIndex = "checkpoints";
+        runner.createIndex(missingIndex, (Settings) null);
+        for (int i = 0; i < docNumber; i++) {
+            runner.insert(missingIndex, "item", String.valueOf(i), "{\"num\":" + i + "}");
+        }
+        for (int i = 0; i < 5; i++) {
+            runner.insert(missingIndex, "item", "none" + i, "{\"msg\":\"none\"}");
+        }
+        runner.refresh();
+        try (BulkStandInServer server = new BulkStandInServer().start()) {
+            server.latency(1500);
+            try (CurlResponse curlResponse = Curl
+                    .post(node, "/" + missingIndex + "/_reindex/" + newIndex)
+                    .param("url", server.getUrl())
+                    .param("wait_for_completion", "true")
+                    .param("timeout", "1m")
+                    .param("checkpoint_field", "num")
+                    .param("scroll", "1s")
+                    .param("size", "10")
+                    .execute()) {
+                Map<String, Object> map = curlResponse.getContentAsMap();
+                assertEquals(map.toString(), "done", map.get("state"));
+                Map<String, Object> stats = (Map<String, Object>) map.get("stats");
+                assertTrue(stats.toString(), ((Number) stats.get("recoveries")).intValue() > 0);
+            }
+            Set<String> ids = new HashSet<>(server.getIds());
+            assertEquals(ids.toString(), docNumber + 5, ids.size());
+            for (int i = 0; i < 5; i++) {
+                assertTrue(ids.contains("none" + i));
+            }
+        }
+        runner.deleteIndex(missingIndex);
+    }
 
-        assertTrue(runner.indexExists(index));
-        assertTrue(runner.indexExists(newIndex));
+    private void test_index_to_newIndex_externalVersion(Node node, String index) throws IOException {
+        String newIndex = "dataset2";
+
+        // the second run is rejected by versions of the first run
+        for (int i = 0; i < 2; i++) {
+            try (CurlResponse curlResponse = Curl
+                    .post(node, "/" + index + "/_reindex/" + newIndex)
+                    .param("wait_for_completion", "true")
+                    .param("metadata", "true")
+                    .param("version_type", "external")
+                    .param("size", "10")
+                    .execute()) {
+                Map<String, Object> map = curlResponse.getContentAsMap();
+                assertTrue(map.containsKey("acknowledged"));
+                assertNull(map.get("name"));
+            }
+            runner.flush();
+        }
 
         // search documents
         {
             final SearchResponse searchResponse = runner.search(newIndex,
-                    newType, null, null, 0, 10);
+                    new BuilderCallback<SearchRequestBuilder>() {
+                        @Override
+                        public SearchRequestBuilder apply(SearchRequestBuilder builder) {
+                            return builder.setVersion(true).setSize(docNumber);
+                        }
+                    });
             assertEquals(docNumber, searchResponse.getHits().getTotalHits());
+            for (SearchHit hit : searchResponse.getHits().getHits()) {
+                assertEquals(1, hit.getVersion());
+            }
         }
 
         runner.deleteIndex(newIndex);
     }
 
-    private void test_index_type_to_newIndex_newType(Node node, String index, String type) throws IOException {
+    private void test_index_to_newIndex_skipUnchanged(Node node, String index) throws IOException {
         String newIndex = "dataset2";
-        String newType = "item2";
 
-        try (CurlResponse curlResponse = Curl
-                .post(node,
-                        "/" + index + "/" + type + "/_reindex/" + newIndex
-                                + "/" + newType)
-                .param("wait_for_completion", "true").execute()) {
-            Map<String, Object> map = curlResponse.getContentAsMap();
-            assertTrue(map.containsKey("acknowledged"));
-            assertNull(map.get("name"));
+        for (int i = 0; i < 2; i++) {
+            try (CurlResponse curlResponse = Curl
+                    .post(node, "/" + index + "/_reindex/" + newIndex)
+                    .param("wait_for_completion", "true")
+                    .param("skip_unchanged", "true")
+                    .param("size", "10")
+                    .execute()) {
+                Map<String, Object> map = curlResponse.getContentAsMap();
+                assertTrue(map.containsKey("acknowledged"));
+                assertNull(map.get("name"));
+            }
+            runner.flush();
         }
 
-        runner.flush();
-
-        assertTrue(runner.indexExists(index));
-        assertTrue(runner.indexExists(newIndex));
-
-        // search documents
+        // search documents, which are indexed once
         {
             final SearchResponse searchResponse = runner.search(newIndex,
-                    newType, null, null, 0, 10);
+                    new BuilderCallback<SearchRequestBuilder>() {
+                        @Override
+                        public SearchRequestBuilder apply(SearchRequestBuilder builder) {
+                            return builder.setVersion(true).setSize(docNumber);
+                        }
+                    });
             assertEquals(docNumber, searchResponse.getHits().getTotalHits());
+            for (SearchHit hit : searchResponse.getHits().getHits()) {
+                assertEquals(1, hit.getVersion());
+            }
         }
 
         runner.deleteIndex(newIndex);
     }
 
-    private void test_index_to_remote_newIndex(Node node, String index) throws IOException {
+    @SuppressWarnings("unchecked")
+    private void test_index_to_newIndex_routing(Node node) throws IOException {
+        String index = "dataset_routed";
+        String newIndex = "dataset2";
+        runner.createIndex(index, (Settings) null);
+        for (int i = 0; i < docNumber; i++) {
+            runner.client().prepareIndex(index, "item", String.valueOf(i)).setRouting("r")
+                    .setSource("{\"msg\":\"test " + i + "\", \"id\":\"" + i + "\"}").execute().actionGet();
+        }
+        runner.refresh();
+        runner.createIndex(newIndex, (Settings) null);
+        runner.ensureGreen(newIndex);
+
+        // documents with the same routing are in one shard, and are found by skip_unchanged
+        for (int i = 0; i < 2; i++) {
+            try (CurlResponse curlResponse = Curl
+                    .post(node, "/" + index + "/_reindex/" + newIndex)
+                    .param("wait_for_completion", "true")
+                    .param("timeout", "30s")
+                    .param("metadata", "true")
+                    .param("group_by_shard", "true")
+                    .param("skip_unchanged", "true")
+                    .param("size", String.valueOf(docNumber))
+                    .execute()) {
+                Map<String, Object> map = curlResponse.getContentAsMap();
+                assertEquals(Boolean.TRUE, map.get("completed"));
+                Map<String, Object> stats = (Map<String, Object>) map.get("stats");
+                if (i == 0) {
+                    assertEquals(1, ((Number) stats.get("bulks")).intValue());
+                } else {
+                    assertEquals(docNumber, ((Number) stats.get("skipped")).intValue());
+                }
+            }
+            runner.flush();
+        }
+
+        final SearchResponse searchResponse = runner.client().prepareSearch(newIndex).setRouting("r")
+                .setVersion(true).setSize(docNumber).execute().actionGet();
+        assertEquals(docNumber, searchResponse.getHits().getTotalHits());
+        for (SearchHit hit : searchResponse.getHits().getHits()) {
+            assertEquals(1, hit.getVersion());
+        }
+        runner.deleteIndex(newIndex);
+
+        // routing values are escaped in JSON and SMILE bulk bodies, and documents without routing have none
+        final String routing = "q\"b\\s";
+        runner.client().prepareIndex(index, "item", "quoted").setRouting(routing)
+                .setSource("{\"msg\":\"quoted\"}").execute().actionGet();
+        runner.insert(index, "item", "plain", "{\"msg\":\"plain\"}");
+        runner.refresh();
+        for (String format : new String[] { null, "smile" }) {
+            CurlRequest request = Curl
+                    .post(node, "/" + index + "/_reindex/" + newIndex)
+                    .param("wait_for_completion", "true")
+                    .param("metadata", "true")
+                    .param("url", "http://localhost:" + node.settings().get("http.port"));
+            if (format != null) {
+                request.param("format", format);
+            }
+            try (CurlResponse curlResponse = request.execute()) {
+                assertEquals(200, curlResponse.getHttpStatusCode());
+            }
+            runner.refresh();
+            assertEquals(docNumber + 2, runner.count(newIndex, "item").getHits().getTotalHits());
+            assertTrue(runner.client().prepareGet(newIndex, "item", "quoted").setRouting(routing).execute().actionGet()
+                    .isExists());
+            assertTrue(runner.client().prepareGet(newIndex, "item", "plain").execute().actionGet().isExists());
+            runner.deleteIndex(newIndex);
+        }
+
+        runner.deleteIndex(index);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void test_index_to_newIndex_groupByShard(Node node, String index) throws IOException {
         String newIndex = "dataset2";
+        runner.createIndex(newIndex, (Settings) null);
+        runner.ensureGreen(newIndex);
 
+        // one page is sent by a bulk request for each shard
+        long bulks;
         try (CurlResponse curlResponse = Curl
                 .post(node, "/" + index + "/_reindex/" + newIndex)
                 .param("wait_for_completion", "true")
-                .param("url", "http://localhost:" + node.settings().get("http.port"))
+                .param("timeout", "30s")
+                .param("group_by_shard", "true")
+                .param("size", String.valueOf(docNumber))
                 .execute()) {
             Map<String, Object> map = curlResponse.getContentAsMap();
-            assertTrue(map.containsKey("acknowledged"));
-            assertNull(map.get("name"));
+            assertEquals(Boolean.TRUE, map.get("completed"));
+            bulks = ((Number) ((Map<String, Object>) map.get("stats")).get("bulks")).longValue();
         }
 
         runner.flush();
 
-        assertTrue(runner.indexExists(index));
-        assertTrue(runner.indexExists(newIndex));
+        int shards = 0;
+        for (int i = 0; i < 3; i++) {
+            final SearchResponse response = runner.client().prepareSearch(newIndex).setSize(0)
+                    .setPreference("_shards:" + i).execute().actionGet();
+            if (response.getHits().getTotalHits() > 0) {
+                shards++;
+            }
+        }
+        assertTrue(shards > 1);
+        assertEquals(shards, bulks);
 
         // search documents
         {
@@ -310,15 +1819,15 @@ public class ReindexingPluginTest extends TestCase {
         runner.deleteIndex(newIndex);
     }
 
-    private void test_index_to_remote_newIndex_withSource(Node node, String index) throws IOException {
+    @SuppressWarnings("unchecked")
+    private void test_index_to_newIndex_shardLocal(Node node, String index) throws Exception {
         String newIndex = "dataset2";
 
         try (CurlResponse curlResponse = Curl
                 .post(node, "/" + index + "/_reindex/" + newIndex)
                 .param("wait_for_completion", "true")
-                .param("url",
-                        "http://localhost:" + node.settings().get("http.port"))
-                .body("{\"query\":{\"term\":{\"msg\":{\"value\":\"1\"}}}}")
+                .param("shard_local", "true")
+                .param("size", "5")
                 .execute()) {
             Map<String, Object> map = curlResponse.getContentAsMap();
             assertTrue(map.containsKey("acknowledged"));
@@ -339,53 +1848,122 @@ public class ReindexingPluginTest extends TestCase {
                             return builder;
                         }
                     });
-            assertEquals(1, searchResponse.getHits().getTotalHits());
+            assertEquals(docNumber, searchResponse.getHits().getTotalHits());
         }
 
         runner.deleteIndex(newIndex);
+
+        // stats of the workers are sent back with the dead letters
+        final String type = "item";
+        runner.createIndex(newIndex, new BuilderCallback<CreateIndexRequestBuilder>() {
+            @Override
+            public CreateIndexRequestBuilder apply(CreateIndexRequestBuilder builder) {
+                return builder.addMapping(type, "{\"" + type + "\":{\"properties\":{\"msg\":{\"type\":\"integer\"}}}}");
+            }
+        });
+        runner.ensureGreen(newIndex);
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex)
+                .param("wait_for_completion", "true")
+                .param("timeout", "30s")
+                .param("shard_local", "true")
+                .param("on_failure", "dead_letter")
+                .param("size", "5")
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertEquals(Boolean.TRUE, map.get("completed"));
+            Map<String, Object> stats = (Map<String, Object>) map.get("stats");
+            assertEquals(docNumber, ((Number) stats.get("dead_letters")).intValue());
+            assertEquals(docNumber, ((Number) stats.get("total")).intValue());
+            assertTrue(((Number) stats.get("bulks")).intValue() > 0);
+        }
+        runner.deleteIndex(newIndex);
+        runner.deleteIndex(newIndex + "-dead-letter");
+
+        // the progress of a worker is shown before its shard finishes
+        String oneShard = "one-shard";
+        runner.createIndex(oneShard, new BuilderCallback<CreateIndexRequestBuilder>() {
+            @Override
+            public CreateIndexRequestBuilder apply(CreateIndexRequestBuilder builder) {
+                return builder.setSettings(Settings.builder().put("index.number_of_shards", 1));
+            }
+        });
+        for (int i = 0; i < 10; i++) {
+            runner.insert(oneShard, type, String.valueOf(i), "{\"msg\":\"test " + i + "\"}");
+        }
+        runner.refresh();
+        try (BulkStandInServer server = new BulkStandInServer().start()) {
+            server.latency(200);
+            String name;
+            try (CurlResponse curlResponse = Curl
+                    .post(node, "/" + oneShard + "/_reindex/" + newIndex)
+                    .param("url", server.getUrl())
+                    .param("shard_local", "true")
+                    .param("size", "1")
+                    .execute()) {
+                name = (String) curlResponse.getContentAsMap().get("name");
+            }
+            boolean partial = false;
+            for (int i = 0; i < 100 && !partial; i++) {
+                try (CurlResponse curlResponse = Curl.get(node, "/_reindex/" + name).execute()) {
+                    Map<String, Object> map = curlResponse.getContentAsMap();
+                    Map<String, Object> stats = (Map<String, Object>) map.get("stats");
+                    if (stats != null && "running".equals(stats.get("state"))) {
+                        int docs = ((Number) stats.get("docs")).intValue();
+                        partial = docs > 0 && docs < 10;
+                    }
+                }
+                Thread.sleep(50);
+            }
+            assertTrue(partial);
+            try (CurlResponse curlResponse = Curl.get(node, "/_reindex/" + name)
+                    .param("wait_for_completion", "true")
+                    .param("timeout", "30s")
+                    .execute()) {
+                Map<String, Object> stats = (Map<String, Object>) curlResponse.getContentAsMap().get("stats");
+                assertEquals(10, ((Number) stats.get("docs")).intValue());
+            }
+        }
+        runner.deleteIndex(oneShard);
     }
 
-    private void test_index_type_to_remote_newIndex(Node node, String index, String type) throws IOException {
+    private void test_index_to_file_to_newIndex(Node node, String index) throws IOException {
         String newIndex = "dataset2";
-        String newType = type;
+        Path dir = fileRoot.resolve("export");
+
+        // paths out of reindexing.file.path are rejected
+        for (String file : new String[] { "../export", Files.createTempDirectory("reindex").toString() }) {
+            try (CurlResponse curlResponse = Curl
+                    .post(node, "/" + index + "/_reindex/" + newIndex)
+                    .param("wait_for_completion", "true")
+                    .param("file", file)
+                    .execute()) {
+                assertEquals(500, curlResponse.getHttpStatusCode());
+            }
+        }
+        assertFalse(Files.exists(fileRoot.resolveSibling("export")));
 
         try (CurlResponse curlResponse = Curl
-                .post(node, "/" + index + "/" + type + "/_reindex/" + newIndex)
+                .post(node, "/" + index + "/_reindex/" + newIndex)
                 .param("wait_for_completion", "true")
-                .param("url",
-                        "http://localhost:" + node.settings().get("http.port"))
+                .param("file", "export")
+                .param("file_segment_size", "1kb")
+                .param("size", "10")
                 .execute()) {
             Map<String, Object> map = curlResponse.getContentAsMap();
             assertTrue(map.containsKey("acknowledged"));
             assertNull(map.get("name"));
         }
 
-        runner.flush();
-
-        assertTrue(runner.indexExists(index));
-        assertTrue(runner.indexExists(newIndex));
-
-        // search documents
-        {
-            final SearchResponse searchResponse = runner.search(newIndex,
-                    newType, null, null, 0, 10);
-            assertEquals(docNumber, searchResponse.getHits().getTotalHits());
-        }
-
-        runner.deleteIndex(newIndex);
-    }
-
-    private void test_index_type_to_remote_newIndex_newType(Node node, String index, String type) throws IOException {
-        String newIndex = "dataset2";
-        String newType = "item2";
+        assertTrue(Files.exists(dir.resolve("manifest.json")));
+        assertTrue(Files.exists(dir.resolve("segment-00001.ndjson.gz")));
+        assertFalse(runner.indexExists(newIndex));
 
         try (CurlResponse curlResponse = Curl
-                .post(node,
-                        "/" + index + "/" + type + "/_reindex/" + newIndex
-                                + "/" + newType)
+                .post(node, "/_reindex/" + newIndex)
                 .param("wait_for_completion", "true")
-                .param("url",
-                        "http://localhost:" + node.settings().get("http.port"))
+                .param("source_file", "export")
+                .param("size", "10")
                 .execute()) {
             Map<String, Object> map = curlResponse.getContentAsMap();
             assertTrue(map.containsKey("acknowledged"));
@@ -394,13 +1972,17 @@ public class ReindexingPluginTest extends TestCase {
 
         runner.flush();
 
-        assertTrue(runner.indexExists(index));
         assertTrue(runner.indexExists(newIndex));
 
         // search documents
         {
             final SearchResponse searchResponse = runner.search(newIndex,
-                    newType, null, null, 0, 10);
+                    new BuilderCallback<SearchRequestBuilder>() {
+                        @Override
+                        public SearchRequestBuilder apply(SearchRequestBuilder builder) {
+                            return builder;
+                        }
+                    });
             assertEquals(docNumber, searchResponse.getHits().getTotalHits());
         }
 
@@ -527,6 +2109,9 @@ public class ReindexingPluginTest extends TestCase {
         runner.ensureGreen();
         test_index_type_to_remote_newIndex_pc(node, index, parentType,
                 childType, ageStr);
+
+        runner.ensureGreen();
+        test_remote_index_to_newIndex_pc(node, index, parentType, childType, ageStr);
     }
 
     private void test_index_to_newIndex_pc(Node node, String index, String parentType, String childType, String age) throws IOException {
@@ -722,4 +2307,47 @@ public class ReindexingPluginTest extends TestCase {
         }
         runner.deleteIndex(newIndex);
     }
+
+    private void test_remote_index_to_newIndex_pc(Node node, String index, String parentType, String childType, String age) throws IOException {
+        String newIndex = "company2";
+        String newParentType = parentType;
+        String newChildType = childType;
+
+        // create an index
+        runner.createIndex(newIndex, (Settings) null);
+        runner.createMapping(newIndex, newChildType,
+                "{\"_parent\":{\"type\":\"" + parentType + "\"}}");
+
+        // reindex
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex + "/")
+                .param("wait_for_completion", "true")
+                .param("source_url", "http://localhost:" + node.settings().get("http.port"))
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(map.containsKey("acknowledged"));
+            assertNull(map.get("name"));
+        }
+
+        runner.flush();
+
+        assertTrue(runner.indexExists(index));
+        assertTrue(runner.indexExists(newIndex));
+
+        // search child documents
+        {
+            final SearchResponse searchResponse = runner.search(newIndex,
+                    newChildType, null, null, 0, 10);
+            assertEquals(parentNumber * childNumber, searchResponse.getHits().getTotalHits());
+        }
+        // search a certain parent documents
+        {
+            final SearchResponse searchResponse = runner
+                    .search(newIndex, newParentType,
+                            QueryBuilders.hasChildQuery(newChildType, QueryBuilders.matchQuery("age", age)),
+                            null, 0, 10);
+            assertEquals(parentNumber, searchResponse.getHits().getTotalHits());
+        }
+        runner.deleteIndex(newIndex);
+    }
 }